@@ -75,12 +75,16 @@ public class BTreeChecker {
                                        BTreePageId pageId, Field lowerBound, Field upperBound,
                                        BTreePageId parentId, boolean checkOccupancy, int depth) throws
             TransactionAbortedException, DbException {
+        boolean pinned = !dirtypages.containsKey(pageId);
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
         assert(page.getParentId().equals(parentId));
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
             bpage.checkRep(bt.keyField(), lowerBound, upperBound, checkOccupancy, depth);
+            if (pinned) {
+                Database.getBufferPool().unpinPage(tid, pageId);
+            }
             return new SubtreeSummary(bpage, depth);
         } else if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
 
@@ -115,6 +119,9 @@ public class BTreeChecker {
                     ipage.getId(), checkOccupancy, depth + 1);
             acc = SubtreeSummary.checkAndMerge(acc, lastRight);
 
+            if (pinned) {
+                Database.getBufferPool().unpinPage(tid, pageId);
+            }
             return acc;
         } else {
             assert(false); // no other page types allowed inside the tree.
@@ -11,6 +11,13 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * In B-link mode (see {@link #setBLinkReads(boolean)}) the iterators find their first
+ * leaf page without locking the root pointer or any internal page, in the manner of
+ * a Lehman-Yao B-link tree. Splits only ever move keys to a new page on the right,
+ * and every leaf page links to its right sibling, so a reader that was routed by an
+ * internal page as it was before a split lands at or left of the right leaf page and
+ * reaches the right one by moving right. Only the leaf pages are locked.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -20,10 +27,15 @@ import simpledb.Predicate.Op;
  */
 public class BTreeFile implements DbFile {
 
+	/** Number of pages a bulk load builds in memory before writing them out */
+	public static final int BULK_LOAD_BATCH_PAGES = 64;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final PageChannel channel;
+	private volatile boolean blinkReads = false;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,6 +50,15 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new PageChannel(f);
+	}
+
+	/**
+	 * Turn B-link mode on or off: with it on, the iterators read the root pointer and
+	 * the internal pages without locks and lock only the leaf pages they scan.
+	 */
+	public void setBLinkReads(boolean blinkReads) {
+		this.blinkReads = blinkReads;
 	}
 
 	/**
@@ -78,14 +99,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = channel.read(0, pageBuf);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,13 +117,8 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = channel.read(pageOffset(id.getPageNumber()), pageBuf);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -127,14 +141,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,17 +154,28 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(pageOffset(page.getId().getPageNumber()), data);
 		}
 	}
+
+	/**
+	 * Close the file channel backing this BTreeFile; it is reopened on the next access.
+	 */
+	public void close() {
+		channel.close();
+	}
+
+	/**
+	 * Returns the byte offset of the given page in the file. Page numbers start at 1,
+	 * right after the root pointer page.
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -176,10 +193,11 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f. It crabs down the tree: each internal page
+	 * on the path is locked READ_ONLY only until its child is locked, and the leaf page
+	 * is locked with permission perm. Internal pages the transaction had locked before
+	 * keep their locks.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -195,7 +213,120 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		return findLeafPage(tid, dirtypages, pid, perm, f, null);
+	}
+
+	/**
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @param latched - if not null, the leaf page is added to it if the descent locked
+	 * it for the first time, so that the caller may release it again
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, List<BTreePageId> latched)
+					throws DbException, TransactionAbortedException {
+		// the parent, if it was locked just to find the way down
+		BTreePageId parent = null;
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			boolean fresh = takesLock(tid, dirtypages, pid);
+			boolean pinned = !dirtypages.containsKey(pid);
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			unlatch(tid, parent);
+			parent = fresh ? pid : null;
+			BTreePageId child = childFor(page, f);
+			if(pinned && !fresh) {
+				Database.getBufferPool().unpinPage(tid, pid);
+			}
+			pid = child;
+		}
+		if(latched != null && takesLock(tid, dirtypages, pid)) {
+			latched.add(pid);
+		}
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		unlatch(tid, parent);
+		return leaf;
+	}
+
+	/**
+	 * Finds and locks READ_WRITE the leaf page that a tuple with key field f goes into,
+	 * for an insert that has to split it. On the way down it locks READ_WRITE the root
+	 * pointer and every internal page the split may reach: the split stops at the
+	 * first page with an empty slot, so whenever a page has one, the locks on the
+	 * pages above it are released again.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the field to search for
+	 * @return the leaf page into which a tuple with key field f goes
+	 */
+	private BTreeLeafPage findLeafPageToSplit(TransactionId tid, HashMap<PageId, Page> dirtypages, Field f)
+			throws DbException, TransactionAbortedException {
+		// pages locked for this descent that the split may still need
+		ArrayList<BTreePageId> unsafe = new ArrayList<BTreePageId>();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		if(takesLock(tid, dirtypages, pid)) {
+			unsafe.add(pid);
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		pid = rootPtr.getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			boolean fresh = takesLock(tid, dirtypages, pid);
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			if(page.getNumEmptySlots() > 0) {
+				unlatch(tid, dirtypages, unsafe);
+			}
+			if(fresh) {
+				unsafe.add(pid);
+			}
+			pid = childFor(page, f);
+		}
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		if(leaf.getNumEmptySlots() > 0) {
+			// a delete made room in the meantime
+			unlatch(tid, dirtypages, unsafe);
+		}
+		return leaf;
+	}
+
+	/**
+	 * @return the child of an internal page to follow to the left-most leaf page
+	 * possibly containing the key field f, or the left-most child if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * @return true if fetching the page would lock it for tid for the first time, so
+	 * that a descent may release the lock again once it is past the page
+	 */
+	private boolean takesLock(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		return tid != null && !dirtypages.containsKey(pid) && !Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	// release a page locked only to find the way down, if any
+	private void unlatch(TransactionId tid, BTreePageId pid) throws DbException, TransactionAbortedException {
+		if(pid != null) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+	}
+
+	// release pages locked READ_WRITE for a descent, which have not been changed
+	private void unlatch(TransactionId tid, HashMap<PageId, Page> dirtypages, List<BTreePageId> pids)
+			throws DbException, TransactionAbortedException {
+		for(BTreePageId pid : pids) {
+			dirtypages.remove(pid);
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+		pids.clear();
 	}
 	
 	/**
@@ -216,6 +347,46 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Convenience method to find a leaf page starting at the root, holding a read lock
+	 * on the root pointer only until the root page is locked. Used by the BTreeFile
+	 * iterators.
+	 * <p>
+	 * In B-link mode a READ_ONLY search locks only the leaf page: it is routed by the
+	 * latest committed versions of the root pointer and the internal pages, read
+	 * without locks. The leaf page may then lie left of the left-most one possibly
+	 * containing f, if a split has moved keys to the right since; the caller finds
+	 * them by moving right along the sibling pointers.
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(blinkReads && perm == Permissions.READ_ONLY) {
+			BufferPool pool = Database.getBufferPool();
+			BTreePageId pid = ((BTreeRootPtrPage) pool.getSnapshotPage(null, rootPtrId, null)).getRootId();
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				pid = childFor((BTreeInternalPage) pool.getSnapshotPage(null, pid, null), f);
+			}
+			return (BTreeLeafPage) pool.getPage(tid, pid, perm);
+		}
+		BTreePageId latched = takesLock(tid, dirtypages, rootPtrId) ? rootPtrId : null;
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(latched == null) {
+			Database.getBufferPool().unpinPage(tid, rootPtrId);
+		}
+		BTreeLeafPage leaf = findLeafPage(tid, dirtypages, rootId, perm, f);
+		unlatch(tid, latched);
+		return leaf;
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -247,8 +418,34 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage right = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = page.getNumTuples() / 2; i > 0 && it.hasNext(); i--) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			right.insertTuple(t);
+		}
+
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(right.getId());
+		}
+		right.setRightSiblingId(oldRightId);
+		right.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(right.getId());
+
+		// copy the first key of the right page up
+		Field middle = right.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle);
+		parent.insertEntry(new BTreeEntry(middle, page.getId(), right.getId()));
+		page.setParentId(parent.getId());
+		right.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle) ? right : page;
 	}
 	
 	/**
@@ -285,7 +482,29 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage right = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = page.getNumEntries() / 2; i > 0 && it.hasNext(); i--) {
+			moving.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			right.insertEntry(e);
+		}
+		// push the middle key up; its right child is the left-most child of the right page now
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, right);
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(right.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		right.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? right : page;
 	}
 	
 	/**
@@ -354,7 +573,12 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
+		boolean pinned = !dirtypages.containsKey(child);
 		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		if(pinned) {
+			// a split can update more children than the pool holds
+			Database.getBufferPool().unpinPage(tid, child);
+		}
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -399,6 +623,12 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * The buffer pool's pin on a page fetched READ_WRITE is dropped right away: dirtypages
+	 * keeps the page reachable, and the buffer pool installs every page in it once the
+	 * operation returns, so evicting it in between loses nothing. A page fetched READ_ONLY
+	 * stays pinned until the caller unpins it, or the operation returns through the
+	 * buffer pool.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -418,6 +648,7 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				Database.getBufferPool().unpinPage(tid, pid);
 			}
 			return p;
 		}
@@ -438,6 +669,11 @@ public class BTreeFile implements DbFile {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		ArrayList<BTreePageId> latched = new ArrayList<BTreePageId>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(takesLock(tid, dirtypages, rootPtrId)) {
+			latched.add(rootPtrId);
+		}
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -445,13 +681,25 @@ public class BTreeFile implements DbFile {
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
+			latched.clear();
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// optimistically lock nothing but the leaf page: find and lock the left-most leaf
+		// page corresponding to the key field, then let go of the root pointer
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField), latched);
+		if(leafPage.getNumEmptySlots() > 0) {
+			latched.remove(leafPage.getId());
+		}
+		unlatch(tid, dirtypages, latched);
+
+		// a split may reach up to the root, so start over, this time locking the pages
+		// the split needs on the way down, and split the leaf page if there are still
+		// no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = findLeafPageToSplit(tid, dirtypages, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			}
 		}
 
 		// insert the tuple into the leaf page
@@ -461,6 +709,262 @@ public class BTreeFile implements DbFile {
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
+
+	/**
+	 * Build this B+ tree bottom-up from tuples sorted on the key field, for creating an
+	 * index in one sequential pass. The leaf pages are filled to fillFactor of their
+	 * capacity one after another, and each level of internal pages is built as the
+	 * level below it grows, so only one page per level is kept in memory however many
+	 * tuples are loaded. Leaving room in the pages lets later inserts go in without
+	 * splitting right away.
+	 * <p>
+	 * The pages are written straight to the file like {@link HeapFile#appendPages}:
+	 * they are logged as updates from an empty page, the log is forced, and then they
+	 * are written {@link #BULK_LOAD_BATCH_PAGES} at a time. tid locks the whole
+	 * table exclusively, and once the pages are written the root pointer is set
+	 * through the BufferPool, so the new tree becomes visible when tid commits.
+	 * 
+	 * @param tid - the transaction loading the tree
+	 * @param sorted - an open iterator over the tuples, sorted on the key field
+	 * @param fillFactor - the fraction of each page to fill, greater than 0 and at most 1
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tree is not empty or the tuples are not sorted
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public int bulkLoad(TransactionId tid, OpIterator sorted, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Database.getBufferPool().lockTable(tid, tableid, Permissions.READ_WRITE);
+		getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		BTreePageId rootId = rootPtr.getRootId();
+		boolean empty = numPages() <= 1 && rootPtr.getHeaderId() == null;
+		if(empty && rootId != null) {
+			empty = rootId.pgcateg() == BTreePageId.LEAF
+					&& ((BTreeLeafPage) getPage(tid, dirtypages, rootId, Permissions.READ_ONLY)).getNumTuples() == 0;
+		}
+		if(!empty) {
+			throw new DbException("bulk load needs an empty B+ tree");
+		}
+
+		// the load starts over at page 1, which is at most an empty leaf page
+		BTreePageId first = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+		Database.getBufferPool().discardPage(first);
+		dirtypages.remove(first);
+
+		BulkLoader loader = new BulkLoader(tid, fillFactor);
+		int loaded = 0;
+		while(sorted.hasNext()) {
+			loader.add(sorted.next());
+			loaded++;
+		}
+		rootId = loader.finish();
+		if(rootId != null) {
+			// the root pointer fetched above is not pinned, and may have been
+			// evicted during the load, so fetch it again to change it
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrId, Permissions.READ_WRITE);
+			rootPtr.setRootId(rootId);
+			rootPtr.markDirty(true, tid);
+			Database.getBufferPool().unpinPage(tid, rootPtrId);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Builds the pages of a bulk load. A page is closed when the next page of its level
+	 * is started. The level above keeps the page it was handed last back until it is
+	 * handed another one or the load finishes, so that every internal page gets at least
+	 * two children: a new internal page is only started for a child that is known to be
+	 * followed by another one.
+	 */
+	private class BulkLoader {
+		private final TransactionId tid;
+		private final double fillFactor;
+		private final int leafCapacity;
+		private int nextPageNo = 1;
+		private final ArrayList<BTreePage> batch = new ArrayList<BTreePage>();
+
+		private BTreeLeafPage leaf;
+		private Field leafLow;
+		private Field leafHigh;
+		private Level above;
+
+		BulkLoader(TransactionId tid, double fillFactor) throws IOException {
+			this.tid = tid;
+			this.fillFactor = fillFactor;
+			BTreeLeafPage scratch = new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+					BTreePage.createEmptyPageData(), keyField);
+			this.leafCapacity = Math.max(1, (int) (scratch.getMaxTuples() * fillFactor));
+		}
+
+		void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+			Field key = t.getField(keyField);
+			if(leafHigh != null && leafHigh.compare(Op.GREATER_THAN, key)) {
+				throw new DbException("bulk load input is not sorted on field " + keyField
+						+ ": " + key + " after " + leafHigh);
+			}
+			if(leaf == null || leaf.getNumTuples() >= leafCapacity) {
+				BTreeLeafPage next = new BTreeLeafPage(new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF),
+						BTreePage.createEmptyPageData(), keyField);
+				if(leaf != null) {
+					leaf.setRightSiblingId(next.getId());
+					next.setLeftSiblingId(leaf.getId());
+					levelAbove().add(leaf, leafLow);
+				}
+				leaf = next;
+				leafLow = key;
+			}
+			leaf.insertTuple(t);
+			leafHigh = key;
+		}
+
+		/**
+		 * Close the last page of every level and write out what is left.
+		 * 
+		 * @return the id of the root page, or null if no tuples were loaded
+		 */
+		BTreePageId finish() throws DbException, IOException, TransactionAbortedException {
+			if(leaf == null) {
+				return null;
+			}
+			BTreePage root;
+			if(above == null) {
+				root = leaf;
+			}
+			else {
+				above.add(leaf, leafLow);
+				root = above.finish();
+			}
+			root.setParentId(BTreeRootPtrPage.getId(tableid));
+			write(root);
+			flush();
+			return root.getId();
+		}
+
+		private Level levelAbove() throws IOException {
+			if(above == null) {
+				above = new Level();
+			}
+			return above;
+		}
+
+		/** Queue a finished page, writing the queue out once it is a batch */
+		private void write(BTreePage page) throws DbException, IOException {
+			batch.add(page);
+			if(batch.size() == BULK_LOAD_BATCH_PAGES) {
+				flush();
+			}
+		}
+
+		private void flush() throws DbException, IOException {
+			LogFile log = Database.getLogFile();
+			long[] lsns = new long[batch.size()];
+			for(int i = 0; i < batch.size(); i++) {
+				BTreePage page = batch.get(i);
+				BTreePageId pid = page.getId();
+				Page before = pid.pgcateg() == BTreePageId.LEAF
+						? new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), keyField)
+						: new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), keyField);
+				lsns[i] = log.logWrite(tid, before, page);
+			}
+			if(!batch.isEmpty()) {
+				log.forceUpTo(lsns[batch.size() - 1]);
+			}
+			for(int i = 0; i < batch.size(); i++) {
+				BTreePage page = batch.get(i);
+				channel.write(pageOffset(page.getId().getPageNumber()), page.getPageData());
+				log.pageWritten(page.getId(), lsns[i]);
+			}
+			batch.clear();
+		}
+
+		/** One level of internal pages */
+		private class Level {
+			private final int capacity;
+			private BTreeInternalPage page;
+			private Field low;
+			private BTreePageId lastChild;
+			private int entries;
+			private Level above;
+			// the last child handed to this level, not yet placed on a page
+			private BTreePage held;
+			private Field heldLow;
+
+			Level() throws IOException {
+				BTreeInternalPage scratch = new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+						BTreePage.createEmptyPageData(), keyField);
+				// keep a slot free for the last child, which is placed even on a full page
+				int max = scratch.getMaxEntries();
+				this.capacity = Math.max(1, Math.min(max - 1, (int) (max * fillFactor)));
+			}
+
+			/**
+			 * Hand this level the next closed page of the level below.
+			 * 
+			 * @param child - the page
+			 * @param childLow - the smallest key under it
+			 */
+			void add(BTreePage child, Field childLow) throws DbException, IOException, TransactionAbortedException {
+				if(held != null) {
+					place(held, heldLow, false);
+				}
+				held = child;
+				heldLow = childLow;
+			}
+
+			/**
+			 * Place a child on the current page, or on a new one if the current page is
+			 * full, then write the child out.
+			 */
+			private void place(BTreePage child, Field childLow, boolean last)
+					throws DbException, IOException, TransactionAbortedException {
+				if(page == null || (entries >= capacity && !last)) {
+					BTreeInternalPage next = new BTreeInternalPage(new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL),
+							BTreePage.createEmptyPageData(), keyField);
+					if(page != null) {
+						if(above == null) {
+							above = new Level();
+						}
+						above.add(page, low);
+					}
+					page = next;
+					low = childLow;
+					entries = 0;
+				}
+				else {
+					page.insertEntry(new BTreeEntry(childLow, lastChild, child.getId()));
+					entries++;
+				}
+				lastChild = child.getId();
+				child.setParentId(page.getId());
+				write(child);
+			}
+
+			/**
+			 * Place the child held back and close the last page of this level and of
+			 * the levels above.
+			 * 
+			 * @return the root page, not written yet
+			 */
+			BTreePage finish() throws DbException, IOException, TransactionAbortedException {
+				if(page == null) {
+					// this level only ever got one child
+					return held;
+				}
+				place(held, heldLow, true);
+				if(above == null) {
+					return page;
+				}
+				above.add(page, low);
+				return above.finish();
+			}
+		}
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
@@ -848,13 +1352,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.append(emptyRootPtrData);
+				channel.append(emptyLeafData);
 			}
 		}
 
@@ -910,11 +1411,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -945,10 +1443,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1078,6 +1573,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// non-null when the file is large enough to be scanned in bulk read mode
+	BulkReadRing ring = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1096,11 +1593,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
+		ring = Database.getBufferPool().bulkReadRingFor(f.numPages());
 	}
 
 	/**
@@ -1116,12 +1611,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			if(nextp == null) {
 				curp = null;
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1147,7 +1643,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if(curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
 		curp = null;
+		ring = null;
 	}
 }
 
@@ -1181,15 +1681,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
 		it = curp.iterator();
 	}
@@ -1229,6 +1726,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
+				Database.getBufferPool().unpinPage(tid, curp.getId());
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
@@ -1252,5 +1750,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if(curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		}
+		curp = null;
 	}
 }
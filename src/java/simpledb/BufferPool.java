@@ -3,9 +3,10 @@ package simpledb;
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-
-import static java.time.chrono.JapaneseEra.values;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,6 +16,66 @@ import static java.time.chrono.JapaneseEra.values;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a ConcurrentHashMap of frames, so lookups of different
+ * pages never contend and a miss reads from disk without holding any
+ * pool-wide lock. Each frame has a pin count and a latch (its monitor): a
+ * frame is pinned while a caller uses its page or while it is being
+ * written, and only unpinned, clean frames are eviction candidates.
+ * Concurrent misses on the same page are collapsed into a single disk read.
+ * <p>
+ * getPage pins the page for the transaction until it unpins it with
+ * {@link #unpinPage}, releases it with {@link #releasePage} or completes, so
+ * a page a caller is still using is never evicted and read back as a second
+ * copy. Each getPage takes one pin. insertTuple and deleteTuple drop the
+ * pins taken while the file changed the table, once the pages are
+ * installed; scans unpin each page as they move past it. A transaction
+ * that keeps more pages pinned than the pool holds gets a DbException on
+ * its next miss. A page fetched without a transaction is only pinned while
+ * it is loaded.
+ * <p>
+ * Eviction picks and pins its victim under a latch, and writes the victim,
+ * if it has to, after letting go of the latch, so a miss never waits for
+ * another miss's write. Commits and flushes take no pool-wide lock either.
+ * <p>
+ * Writes follow the write-ahead rule: a dirty page is logged, and the log
+ * forced, before the page is written to its file. By default a committing
+ * transaction's pages are written out at commit (FORCE). In NO-FORCE mode
+ * (see {@link #setNoForce(boolean)}) they are only logged, and the frames
+ * remember that the log holds a newer image than the file until the page is
+ * written by eviction, {@link #flushAllPages()} or a checkpoint.
+ * <p>
+ * Each transaction has an index of the pages it may have dirtied: those it
+ * fetched READ_WRITE and those installed as dirtied by it. Commit, abort
+ * and {@link #flushPages(TransactionId)} look only at these, so their cost
+ * depends on what the transaction touched rather than on the size of the
+ * pool. A page must be fetched READ_WRITE before it is marked dirty.
+ * <p>
+ * Eviction prefers clean pages. In STEAL mode (see {@link #setSteal(boolean)})
+ * a dirty page of a running transaction may be evicted too when no clean
+ * page is left: it is logged and the log forced before it is written, so
+ * an abort or recovery can undo it.
+ * <p>
+ * Pages are written ahead of demand by a background page cleaner, so that
+ * a miss rarely has to write a page before it can reuse its frame. The
+ * cleaner writes back the pages a checkpoint hands to
+ * {@link #writeBackLater(Collection)} at a limited rate, so that checkpoints
+ * never stall readers and writers, and otherwise keeps the share of the pool
+ * that waits to be written (unwritten pages, and dirty ones in STEAL mode)
+ * under the dirty ratio target (see {@link #setDirtyRatioTarget(double)}).
+ * Writes are sorted by file and page number, and runs of adjacent pages go
+ * to the file as one write (see {@link DbFile#writePages(List)}).
+ * <p>
+ * Snapshot reads ({@link #getSnapshotPage}) take no locks. A transaction's
+ * snapshot begins with its first snapshot read and ends when it completes;
+ * it sees the pages as they were committed at that point, kept in a
+ * {@link VersionStore} when later commits replace them. Pages a running
+ * transaction appends to a file directly are registered with
+ * {@link #pagesAppended} and read as empty until it commits. In STEAL mode
+ * a page of a running transaction written by eviction or the page cleaner
+ * is registered the same way, with its committed image, so that snapshots
+ * reading it back from disk do not see the uncommitted changes. Aborting
+ * the transaction writes those committed images back to the file.
  * 
  * @Threadsafe, all fields are final
  */
@@ -30,35 +91,514 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private HashMap<PageId, Page> cache;
-    private int pageLimit;
+    /** Largest ring handed to a bulk read; a ring never takes more than
+    1/8 of the pool. */
+    public static final int BULK_READ_RING_PAGES = 16;
+
+    /** Scans of files larger than 1/BULK_READ_POOL_FRACTION of the pool are
+    read in bulk mode. */
+    public static final int BULK_READ_POOL_FRACTION = 4;
+
+    /** Default rate, in pages per second, at which the pages that were dirty
+    at a checkpoint are written back. */
+    public static final int DEFAULT_CHECKPOINT_FLUSH_RATE = 1000;
+    /** Default share of the pool that may wait to be written before the
+    page cleaner writes it. */
+    public static final double DEFAULT_DIRTY_RATIO_TARGET = 0.1;
+    // how often the page cleaner looks at the pool when there is nothing queued
+    private static final long CLEANER_PERIOD_MILLIS = 10;
+    // how long an idle page cleaner lingers before it exits
+    private static final long CLEANER_IDLE_MILLIS = 1000;
+    // the most adjacent pages a flush writes, and keeps pinned, at once
+    static final int MAX_WRITE_RUN = 16;
+
+    // the pins a transaction holds on the frame of one page
+    private static class Pin {
+        final Frame frame;
+        int count = 0;
+
+        Pin(Frame frame) {
+            this.frame = frame;
+        }
+
+        void release() {
+            for (; count > 0; count--) {
+                frame.unpin();
+            }
+        }
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * A slot of the page table. The frame's monitor is its latch and guards
+     * pins and retired; page may be swapped for a newer version of the same
+     * page by CachePage.
+     */
+    private static class Frame {
+        static final Comparator<Frame> FILE_ORDER =
+                Comparator.<Frame>comparingInt(f -> f.page.getId().getTableId())
+                        .thenComparingInt(f -> f.page.getId().getPageNumber());
+
+        volatile Page page;
+        private int pins = 0;
+        // set once the frame has left the page table; it can no longer be pinned
+        private boolean retired = false;
+        // the page was logged since it was last written: the file is behind
+        private boolean unwritten = false;
+        // bumped each time the page is logged, so a write of an older image
+        // does not clear unwritten
+        private long version = 0;
+        // log sequence number of the latest logged image
+        private long lsn = 0;
+        // running transaction whose changes were logged from this frame
+        volatile TransactionId writer;
+
+        Frame(Page page) {
+            this.page = page;
+        }
+
+        synchronized boolean pin() {
+            if (retired) return false;
+            pins++;
+            return true;
+        }
+
+        synchronized void unpin() {
+            pins--;
+        }
+
+        /** Drop a pin and retire the frame if that leaves it evictable */
+        synchronized boolean unpinAndRetire() {
+            pins--;
+            return retire(false);
+        }
+
+        synchronized boolean isEvictable() {
+            return isCandidate() && !unwritten;
+        }
+
+        // clean and unused; an unwritten page has to be written before it can go
+        synchronized boolean isCandidate() {
+            return !retired && pins == 0 && page.isDirty() == null;
+        }
+
+        synchronized boolean isUnpinned() {
+            return !retired && pins == 0;
+        }
+
+        // unused, and its file is behind: unwritten, or dirty if it may be stolen
+        synchronized boolean needsWrite(boolean steal) {
+            return !retired && pins == 0 && (page.isDirty() != null ? steal : unwritten);
+        }
+
+        synchronized boolean isUnwritten() {
+            return unwritten;
+        }
+
+        synchronized long lsn() {
+            return lsn;
+        }
+
+        /** The page was logged as record lsn and is clean now, but not written yet */
+        synchronized void logged(long lsn) {
+            unwritten = true;
+            this.lsn = lsn;
+            version++;
+        }
+
+        /** The image logged as the given version is on disk */
+        synchronized void written(long version) {
+            if (this.version == version) unwritten = false;
+        }
+
+        /** Replace the cached version of the page, unless the frame is gone */
+        synchronized boolean replace(Page newPage) {
+            if (retired) return false;
+            page = newPage;
+            return true;
+        }
+
+        /** Take the frame out of service; unless forced, only an evictable frame can be retired */
+        synchronized boolean retire(boolean force) {
+            if (!force && !isEvictable()) return false;
+            retired = true;
+            return true;
+        }
+    }
+
+    // a page image taken from a frame to be written, and what it was logged as
+    private static class PageWrite {
+        final Frame frame;
+        final Page page;
+        final long version;
+        final long lsn;
+
+        PageWrite(Frame frame, Page page, long version, long lsn) {
+            this.frame = frame;
+            this.page = page;
+            this.version = version;
+            this.lsn = lsn;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    // per transaction, the pages it may have dirtied; dropped when it completes
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> txnPages;
+    // per transaction, the pins it holds through getPage, guarded by the inner map
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Pin>> txnPins = new ConcurrentHashMap<>();
+    private final VersionStore versions = new VersionStore();
+    // the snapshot of each transaction that has made a snapshot read
+    private final ConcurrentHashMap<TransactionId, VersionStore.Snapshot> snapshots = new ConcurrentHashMap<>();
+    // pages being read from disk right now; later misses wait on the same future
+    private final ConcurrentHashMap<PageId, CompletableFuture<Frame>> loading;
+    private final int pageLimit;
+    private final EvictionPolicy evictionPolicy;
+    // serializes victim selection only; hits and misses never take it
+    private final Object evictionLatch = new Object();
+    // victims picked but not yet dropped, guarded by evictionLatch
+    private int evicting = 0;
+    private volatile boolean noForce = false;
+    private volatile boolean steal = false;
+    private volatile int checkpointFlushRate = DEFAULT_CHECKPOINT_FLUSH_RATE;
+    private volatile double dirtyRatioTarget = DEFAULT_DIRTY_RATIO_TARGET;
+    // pages queued for write-back by checkpoints, protected by itself
+    private final ArrayDeque<PageId> writeBackQueue = new ArrayDeque<>();
+    // set and cleared under writeBackQueue; read without it to make waking cheap
+    private volatile boolean cleanerRunning = false;
+    // why the page cleaner's last round failed, if it did
+    private volatile IOException cleanerFailure;
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * LRU-2.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LruKEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy decides which page is given up when the pool is full
+     * @see ClockEvictionPolicy
+     * @see LruKEvictionPolicy
+     * @see TwoQEvictionPolicy
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
-        cache = new HashMap<>();
+        frames = new ConcurrentHashMap<>();
+        txnPages = new ConcurrentHashMap<>();
+        loading = new ConcurrentHashMap<>();
         pageLimit = numPages;
         lockManager = new LockManager();
+        this.evictionPolicy = evictionPolicy;
     }
 
-    private synchronized void CachePage(PageId pageId, Page page) throws DbException {
-        //if not contains now and pool is full
-        //call evictPage()
-        if(!cache.containsKey(pageId) && cache.size() >= pageLimit){
-            assert cache.size() == pageLimit;
-            evictPage();
+    // install a (possibly newer) version of a page, e.g. one dirtied by insertTuple
+    private void CachePage(PageId pageId, Page page) throws DbException {
+        TransactionId dirtier = page.isDirty();
+        if(dirtier != null){
+            pagesOf(dirtier).add(pageId);
+        }
+        while (true) {
+            Frame frame = frames.get(pageId);
+            if(frame == null){
+                //if not contains now and pool is full
+                //call evictPage()
+                makeRoom();
+                frame = frames.putIfAbsent(pageId, new Frame(page));
+                if(frame == null){
+                    evictionPolicy.pageAdded(pageId);
+                    if(steal){
+                        wakeCleaner();
+                    }
+                    return;
+                }
+            }
+            if(frame.replace(page)){
+                if(steal){
+                    wakeCleaner();
+                }
+                return;
+            }
+            // the frame was retired under us, try again with a new one
+        }
+    }
+
+    /*
+     * Find the frame holding pid, reading the page from disk on a miss, and
+     * pin it. The disk read happens without holding any lock of the pool.
+     */
+    private Frame pinFrame(PageId pid, BulkReadRing ring) throws DbException {
+        while (true) {
+            Frame frame = frames.get(pid);
+            if(frame == null){
+                frame = loadFrame(pid, ring);
+            }else if(ring == null){
+                evictionPolicy.pageAccessed(pid);
+            }
+            if(frame.pin()){
+                return frame;
+            }
+            // evicted between lookup and pin, look again
         }
-        cache.put(pageId, page);
+    }
+
+    /*
+     * Single-flight load: the first thread to miss on pid reads it and
+     * publishes a future, every other thread that misses meanwhile waits on
+     * that future, so all of them get the identical frame and the page is
+     * read once.
+     */
+    private Frame loadFrame(PageId pid, BulkReadRing ring) throws DbException {
+        CompletableFuture<Frame> mine = new CompletableFuture<>();
+        CompletableFuture<Frame> pending = loading.putIfAbsent(pid, mine);
+        if(pending != null){
+            return awaitLoad(pending);
+        }
+        try {
+            // the previous loader may have published the frame after our lookup
+            Frame frame = frames.get(pid);
+            if(frame == null){
+                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                frame = installFrame(pid, page, ring);
+            }
+            mine.complete(frame);
+            return frame;
+        } catch (DbException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(pid, mine);
+        }
+    }
+
+    private static Frame awaitLoad(CompletableFuture<Frame> pending) throws DbException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for a page read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof DbException){
+                throw (DbException) cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            }
+            throw new DbException("page read failed: " + cause);
+        }
+    }
+
+    private Frame installFrame(PageId pid, Page page, BulkReadRing ring) throws DbException {
+        // a page read by a bulk scan reuses the frame of the oldest page in its ring,
+        // unless that page has been dirtied or pinned in the meantime
+        if(ring != null){
+            PageId recycled = ring.add(pid);
+            if(recycled != null){
+                tryEvict(recycled);
+            }
+        }
+        makeRoom();
+        Frame fresh = new Frame(page);
+        Frame existing = frames.putIfAbsent(pid, fresh);
+        if(existing != null){
+            return existing;
+        }
+        evictionPolicy.pageAdded(pid);
+        return fresh;
     }
 
 //    public Page isPageCached(PageId pageId){
 //        return cache.get(pageId);
 //    }
 
+    /**
+     * Choose whether committing transactions write their pages to disk
+     * (FORCE, the default) or only log them (NO-FORCE). NO-FORCE relies on
+     * {@link LogFile#recover()} to redo committed changes after a crash, and
+     * on transactions committing through {@link Transaction#commit()}, which
+     * forces the log.
+     */
+    public void setNoForce(boolean noForce) {
+        this.noForce = noForce;
+    }
+
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /**
+     * Choose whether eviction may write out pages dirtied by transactions
+     * that are still running (STEAL) or only clean ones (NO STEAL, the
+     * default). With STEAL a transaction can update more pages than the pool
+     * holds; undoing a stolen page relies on {@link LogFile#rollback} and
+     * {@link LogFile#recover()}, so such transactions must abort through
+     * {@link Transaction}.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Choose which transaction of a deadlock is aborted.
+     *
+     * @see LockManager.VictimPolicy
+     */
+    public void setDeadlockVictimPolicy(LockManager.VictimPolicy policy) {
+        lockManager.setVictimPolicy(policy);
+    }
+
+    /**
+     * Set how many page and tuple locks a transaction may hold in one table
+     * before they are escalated to a single table lock.
+     */
+    public void setLockEscalationThreshold(int locks) {
+        lockManager.setEscalationThreshold(locks);
+    }
+
+    /**
+     * Set the rate at which the pages that were dirty at a checkpoint are
+     * written back in the background.
+     *
+     * @param pagesPerSecond the most pages written per second
+     */
+    public void setCheckpointFlushRate(int pagesPerSecond) {
+        if(pagesPerSecond < 1){
+            throw new IllegalArgumentException("bad checkpoint flush rate " + pagesPerSecond);
+        }
+        checkpointFlushRate = pagesPerSecond;
+    }
+
+    /**
+     * Set how much of the pool may wait to be written before the page
+     * cleaner writes it out. Waiting pages are those whose latest image is
+     * only in the log (NO-FORCE) and, in STEAL mode, dirty ones. Once more
+     * than this share of the pool is waiting, the cleaner writes all waiting
+     * unpinned pages in one sorted batch.
+     *
+     * @param ratio share of the pool, between 0 (write right away) and 1
+     *        (only eviction writes)
+     */
+    public void setDirtyRatioTarget(double ratio) {
+        if(!(ratio >= 0 && ratio <= 1)){
+            throw new IllegalArgumentException("bad dirty ratio target " + ratio);
+        }
+        dirtyRatioTarget = ratio;
+        wakeCleaner();
+    }
+
+    /**
+     * Queue pages to be written back in the background, at the checkpoint
+     * flush rate. Pages that are no longer cached, or whose file has caught
+     * up with the log meanwhile, are skipped.
+     *
+     * @param pids the pages to write back
+     * @see LogFile#logCheckpoint()
+     */
+    public void writeBackLater(Collection<PageId> pids) {
+        synchronized(writeBackQueue){
+            writeBackQueue.addAll(pids);
+            writeBackQueue.notifyAll();
+        }
+        wakeCleaner();
+    }
+
+    // make sure the page cleaner runs; cheap enough to call on every update
+    private void wakeCleaner() {
+        if(cleanerRunning){
+            return;
+        }
+        synchronized(writeBackQueue){
+            if(!cleanerRunning){
+                cleanerRunning = true;
+                Thread cleaner = new Thread(this::runCleaner, "BufferPool page cleaner");
+                cleaner.setDaemon(true);
+                cleaner.start();
+            }
+        }
+    }
+
+    /*
+     * The page cleaner: writes back queued checkpoint pages one at a time at
+     * the checkpoint flush rate, and in between keeps the pages waiting to be
+     * written under the dirty ratio target. Exits after a second without
+     * anything to do; the next update or checkpoint starts it again.
+     */
+    private void runCleaner() {
+        long busy = System.currentTimeMillis();
+        try {
+            while(true){
+                PageId pid;
+                synchronized(writeBackQueue){
+                    pid = writeBackQueue.poll();
+                    if(pid == null){
+                        if(System.currentTimeMillis() - busy >= CLEANER_IDLE_MILLIS){
+                            cleanerRunning = false;
+                            return;
+                        }
+                        writeBackQueue.wait(CLEANER_PERIOD_MILLIS);
+                        pid = writeBackQueue.poll();
+                    }
+                }
+                try {
+                    if(pid != null){
+                        writeBack(pid);
+                        busy = System.currentTimeMillis();
+                        TimeUnit.MICROSECONDS.sleep(1000000L / checkpointFlushRate);
+                    }else if(cleanExcess()){
+                        busy = System.currentTimeMillis();
+                    }
+                    cleanerFailure = null;
+                } catch (IOException e) {
+                    // the pages stay unwritten; eviction or the next round
+                    // retries, and a miss that finds no frame reports it
+                    cleanerFailure = e;
+                    Debug.log("page cleaner: %s", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized(writeBackQueue){
+                cleanerRunning = false;
+            }
+        }
+    }
+
+    // write a page back if its file is behind the log and it may be written now
+    private void writeBack(PageId pid) throws IOException {
+        Frame frame = frames.get(pid);
+        if(frame != null && frame.isUnwritten() && (frame.page.isDirty() == null || steal)){
+            keepCommittedImage(frame);
+            flushFrames(Collections.singletonList(frame));
+        }
+    }
+
+    // write every waiting page if there are more than the dirty ratio target allows
+    private boolean cleanExcess() throws IOException {
+        boolean steal = this.steal;
+        ArrayList<Frame> waiting = new ArrayList<>();
+        for(Frame frame : frames.values()){
+            if(frame.needsWrite(steal)){
+                waiting.add(frame);
+            }
+        }
+        if(waiting.isEmpty() || waiting.size() <= dirtyRatioTarget * pageLimit){
+            return false;
+        }
+        for(Frame frame : waiting){
+            keepCommittedImage(frame);
+        }
+        flushFrames(waiting);
+        return true;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -89,19 +629,263 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public   Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but in bulk read mode: on a miss the page is loaded into one of the
+     * frames of the given ring rather than into a frame picked by the
+     * eviction policy. Hits are served from the shared pool as usual and do
+     * not count as accesses for the eviction policy.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's private ring, or null for a normal read
+     * @see #bulkReadRingFor(int)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BulkReadRing ring)
         throws TransactionAbortedException, DbException {
         //获取Lock 只能在getPage()?
-        Page page = cache.get(pid);
-        if(page == null){
-            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            CachePage(pid, page);
+        // lock first: a frame looked up before the lock is granted may be
+        // discarded by the aborting holder while we wait
+        lockManager.tryToGetPage(tid,pid,perm);
+        if(perm == Permissions.READ_WRITE && tid != null){
+            pagesOf(tid).add(pid);
         }
 
-//        System.out.println(tid.hashCode() + " " + page.getId().hashCode() + " " + perm);
+        Frame frame = pinFrame(pid, ring);
+        if(tid == null){
+            // nobody could unpin it later, so the pin only covers the load
+            Page page = frame.page;
+            frame.unpin();
+            return page;
+        }
+        holdPin(tid, pid, frame);
+        return frame.page;
+    }
 
-        lockManager.tryToGetPage(tid,pid,perm);
+    /**
+     * Let go of one pin tid holds on a page through getPage, once the caller
+     * is done with the page. The lock stays. The page may be evicted once
+     * no pins are left on it.
+     *
+     * @param tid the transaction that fetched the page
+     * @param pid the ID of the page
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Pin> pins = tid == null ? null : txnPins.get(tid);
+        if(pins == null){
+            return;
+        }
+        synchronized(pins){
+            Pin pin = pins.get(pid);
+            if(pin != null){
+                pin.frame.unpin();
+                if(--pin.count == 0){
+                    pins.remove(pid);
+                }
+            }
+        }
+    }
 
-        return page;
+    // record that tid holds one more pin on the frame of pid
+    private void holdPin(TransactionId tid, PageId pid, Frame frame) {
+        Map<PageId, Pin> pins = txnPins.computeIfAbsent(tid, t -> new HashMap<>());
+        synchronized(pins){
+            Pin pin = pins.get(pid);
+            if(pin == null || pin.frame != frame){
+                if(pin != null){
+                    // that frame has been discarded since
+                    pin.release();
+                }
+                pin = new Pin(frame);
+                pins.put(pid, pin);
+            }
+            pin.count++;
+        }
+    }
+
+    // drop every pin tid holds on pid
+    private void dropPins(TransactionId tid, PageId pid) {
+        Map<PageId, Pin> pins = tid == null ? null : txnPins.get(tid);
+        if(pins == null){
+            return;
+        }
+        synchronized(pins){
+            Pin pin = pins.remove(pid);
+            if(pin != null){
+                pin.release();
+            }
+        }
+    }
+
+    // how many pins tid holds on each frame right now
+    private Map<Frame, Integer> pinCounts(TransactionId tid) {
+        Map<Frame, Integer> counts = new HashMap<>();
+        Map<PageId, Pin> pins = txnPins.get(tid);
+        if(pins != null){
+            synchronized(pins){
+                for(Pin pin : pins.values()){
+                    counts.put(pin.frame, pin.count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    // drop the pins tid took since the given counts
+    private void unpinSince(TransactionId tid, Map<Frame, Integer> before) {
+        Map<PageId, Pin> pins = txnPins.get(tid);
+        if(pins == null){
+            return;
+        }
+        synchronized(pins){
+            Iterator<Pin> it = pins.values().iterator();
+            while(it.hasNext()){
+                Pin pin = it.next();
+                int kept = before.getOrDefault(pin.frame, 0);
+                for(; pin.count > kept; pin.count--){
+                    pin.frame.unpin();
+                }
+                if(pin.count == 0){
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve a page as it was committed when tid made its first snapshot
+     * read, without locking it, so the read neither waits for writers nor
+     * holds them up. Pages tid has changed itself are returned as they are
+     * now. The returned page must not be modified.
+     *
+     * @param tid the transaction reading, or null to read the latest committed version
+     * @param pid the ID of the requested page
+     * @param ring the scan's private ring, or null for a normal read
+     */
+    public Page getSnapshotPage(TransactionId tid, PageId pid, BulkReadRing ring)
+        throws DbException {
+        VersionStore.Snapshot snapshot = tid == null ? null : snapshots.computeIfAbsent(tid, t -> versions.begin());
+        Frame frame = pinFrame(pid, ring);
+        try {
+            Page page = frame.page;
+            if(tid != null && (tid.equals(page.isDirty()) || tid.equals(frame.writer))){
+                return page;
+            }
+            return versions.read(snapshot, page, tid);
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /**
+     * Acquire a lock on a page without bringing the page into the pool. Used
+     * for pages that are written to disk directly, such as bulk-loaded ones.
+     */
+    void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.tryToGetPage(tid, pid, perm);
+    }
+
+    // a running transaction's changes to the frame's page are about to be
+    // written ahead of its commit; keep the committed image for snapshots
+    private void keepCommittedImage(Frame frame) {
+        Page page = frame.page;
+        TransactionId writer = page.isDirty();
+        if(writer == null){
+            writer = frame.writer;
+        }
+        if(writer != null){
+            versions.appended(writer, Collections.singletonList(page.getBeforeImage()));
+        }
+    }
+
+    // put back on disk the committed images of the pages tid wrote ahead of
+    // its commit (appended or stolen). A log rollback has done so already,
+    // but without one the file would keep the aborted changes.
+    private void restoreWrittenAhead(TransactionId tid, Set<PageId> pids) throws IOException {
+        TreeMap<Integer, List<Page>> byTable = new TreeMap<>();
+        for(Page image : versions.writtenAhead(tid)){
+            byTable.computeIfAbsent(image.getId().getTableId(), t -> new ArrayList<>()).add(image);
+        }
+        for(List<Page> images : byTable.values()){
+            images.sort(Comparator.comparingInt(page -> page.getId().getPageNumber()));
+            DbFile file = Database.getCatalog().getDatabaseFile(images.get(0).getId().getTableId());
+            file.writePages(images);
+            for(Page image : images){
+                PageId pid = image.getId();
+                Frame frame = frames.get(pid);
+                // a copy read back from disk holds the aborted changes; those
+                // tid pinned are dealt with below
+                if(frame != null && (pids == null || !pids.contains(pid))
+                        && frame.page.isDirty() == null && !frame.isUnwritten()){
+                    discardPage(pid);
+                }
+                file.pageRestored(image);
+            }
+        }
+    }
+
+    /**
+     * Note that tid is about to write pages past the end of their file
+     * without bringing them into the pool, so that snapshot reads keep
+     * seeing the given committed images until tid completes.
+     *
+     * @param tid the writer
+     * @param committed the image of each page before tid wrote it
+     */
+    void pagesAppended(TransactionId tid, Collection<Page> committed) {
+        versions.appended(tid, committed);
+    }
+
+    /**
+     * Lock a whole table, S for READ_ONLY or X for READ_WRITE. It covers
+     * every page of the table, so a scan can lock it once up front instead
+     * of page by page.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.lockTable(tid, tableId, perm);
+    }
+
+    /**
+     * Lock a single tuple, with intention locks on its page and table.
+     * Transactions holding locks on different tuples of a page do not
+     * block each other.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.lockTuple(tid, rid, perm);
+    }
+
+    /** @return the cached version of a page, or null if it is not in the pool */
+    Page cachedPage(PageId pid) {
+        Frame frame = frames.get(pid);
+        return frame == null ? null : frame.page;
+    }
+
+    /**
+     * Decide whether a scan over a file of the given size should run in
+     * bulk read mode. A file up to a quarter of the pool is worth caching in
+     * full, and so is one that fits in the frames still free, since reading
+     * it evicts nothing. A scan over any other file would push out much of
+     * everything else cached, so it gets a ring of its own and leaves the
+     * rest of the cache alone.
+     *
+     * @param numPages the number of pages the scan will read
+     * @return a fresh ring for the scan, or null if the scan should use the
+     *         shared pool normally
+     */
+    public BulkReadRing bulkReadRingFor(int numPages) {
+        if(numPages <= pageLimit / BULK_READ_POOL_FRACTION
+                || numPages <= pageLimit - frames.size()){
+            return null;
+        }
+        return new BulkReadRing(Math.max(1, Math.min(BULK_READ_RING_PAGES, pageLimit / 8)));
     }
 
     /**
@@ -113,9 +897,10 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
      */
-    public  synchronized void releasePage(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
+    public void releasePage(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
         // some code goes here
         // not necessary for lab1|lab2
+        dropPins(tid, pid);
         lockManager.removeLock(pid, tid);
     }
 
@@ -144,24 +929,67 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    //不加同步锁有时候会引发 并发相关的Exception ，主要是遍历迭代器
-    //应该是同步遍历一个HashSet，删除某个节点可能导致另一个迭代出现问题
-    public synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         //Commit should flush dirty pages, On the other hand, Abort discard them
         //release lock held by transaction
-        Set<Map.Entry<PageId, Page>> entrySet = cache.entrySet();
-        Iterator<Map.Entry<PageId, Page>> iterator = entrySet.iterator();
-        while (iterator.hasNext()){
-            Page page = iterator.next().getValue();
-            if(tid.equals(page.isDirty())){
-                if(commit){
-                    Database.getBufferPool().flushPage(page);
+        ArrayList<Frame> dirtied = new ArrayList<>();
+        ArrayList<Frame> touched = new ArrayList<>();
+        Set<PageId> pids = txnPages.remove(tid);
+        for(Frame frame : framesOf(pids)){
+            if(tid.equals(frame.page.isDirty())){
+                dirtied.add(frame);
+                touched.add(frame);
+            }else if(tid.equals(frame.writer)){
+                touched.add(frame);
+            }else if(!commit && frame.writer == null && frame.page.isDirty() == null
+                    && lockManager.holdsExclusiveLock(tid, frame.page.getId())){
+                // no one else can have changed it, but tid may have changed it
+                // in place and been aborted before marking it dirty
+                touched.add(frame);
+            }
+        }
+        if(commit){
+            if(noForce){
+                logFrames(dirtied);
+            }else{
+                flushFrames(dirtied);
+            }
+            // what is cached now is the committed state to roll back to later
+            ArrayList<Page> committed = new ArrayList<>();
+            for(Frame frame : touched){
+                committed.add(frame.page);
+                frame.writer = null;
+            }
+            versions.commit(tid, committed);
+        }else{
+            restoreWrittenAhead(tid, pids);
+            versions.abort(tid);
+            for(Frame frame : touched){
+                frame.writer = null;
+                Page page = frame.page;
+                Page before = page.getBeforeImage();
+                if(frame.isUnwritten()){
+                    // the file lacks committed changes, so go back to the
+                    // before image in memory instead of rereading the file
+                    frame.replace(before);
                 }else{
-//                    Database.getBufferPool().discardPage(page.getId());
-                    iterator.remove();
+                    discardPage(page.getId());
                 }
                 page.markDirty(false, null);
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).pageRestored(before);
+            }
+        }
+        VersionStore.Snapshot snapshot = snapshots.remove(tid);
+        if(snapshot != null){
+            versions.end(snapshot);
+        }
+        Map<PageId, Pin> pins = txnPins.remove(tid);
+        if(pins != null){
+            synchronized(pins){
+                for(Pin pin : pins.values()){
+                    pin.release();
+                }
             }
         }
         //
@@ -188,8 +1016,10 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         //这个tuple的RecordId应该认为是无效的？
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-        updateCachedPages(heapFile.insertTuple(tid, t));
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        Map<Frame, Integer> pinned = pinCounts(tid);
+        updateCachedPages(markDirty(tid, file.insertTuple(tid, t)));
+        unpinSince(tid, pinned);
     }
 
     /**
@@ -209,36 +1039,186 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> updatedPages = heapFile.deleteTuple(tid, t);
+        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        Map<Frame, Integer> pinned = pinCounts(tid);
+        List<Page> updatedPages = file.deleteTuple(tid, t);
 
-        updateCachedPages(updatedPages);
+        updateCachedPages(markDirty(tid, updatedPages));
+        unpinSince(tid, pinned);
     }
 
     // 注意要update，因为可能你还没访问过一个Page，然后你插入/删除元组使得他发生了改变
     // 那么你有两个选择，把它cache到buffer pool或者flush到disk
-    private synchronized void updateCachedPages(List<Page> pages) throws DbException {
+    private void updateCachedPages(List<Page> pages) throws DbException {
         for(Page page:pages){
             CachePage(page.getId(),page);
         }
     }
 
+    // a DbFile returns the pages it changed; not every DbFile marks them itself
+    private static List<Page> markDirty(TransactionId tid, List<Page> pages) {
+        for(Page page : pages){
+            page.markDirty(true, tid);
+        }
+        return pages;
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Collection<Page> pages =  cache.values();
-        for(Page page: pages){
-            flushPage(page);
+        flushFrames(frames.values());
+    }
+
+    /*
+     * Write the dirty and unwritten pages among the given frames. Dirty pages
+     * are logged first, then the log is forced once for all of them, then the
+     * pages are written file by file in page number order. A frame is pinned
+     * only while it is logged and while its own write runs, so that eviction
+     * always finds unpinned frames while a large batch is being written;
+     * adjacent pages are written together, at most a few at a time.
+     */
+    private void flushFrames(Collection<Frame> toFlush) throws IOException {
+        long lsn = 0;
+        ArrayList<Frame> flushed = new ArrayList<>();
+        for(Frame frame : toFlush){
+            if(!frame.pin()){
+                continue;
+            }
+            try {
+                Page page = frame.page;
+                TransactionId dirtier = page.isDirty();
+                if(dirtier != null){
+                    lsn = Math.max(lsn, logPage(frame, page, dirtier));
+                }else{
+                    lsn = Math.max(lsn, frame.lsn());
+                }
+            } finally {
+                frame.unpin();
+            }
+            flushed.add(frame);
+        }
+        Database.getLogFile().forceUpTo(lsn);
+        flushed.sort(Frame.FILE_ORDER);
+        int maxRun = Math.max(1, Math.min(MAX_WRITE_RUN, pageLimit / 8));
+        for(int from = 0; from < flushed.size(); ){
+            int to = from + 1;
+            while(to < flushed.size() && to - from < maxRun
+                    && adjacent(flushed.get(to - 1), flushed.get(to))){
+                to++;
+            }
+            writeRun(flushed.subList(from, to));
+            from = to;
+        }
+    }
+
+    // whether the page of b directly follows the page of a in the same file
+    private static boolean adjacent(Frame a, Frame b) {
+        PageId x = a.page.getId(), y = b.page.getId();
+        return x.getTableId() == y.getTableId() && x.getPageNumber() + 1 == y.getPageNumber();
+    }
+
+    // write the unwritten pages of a run of adjacent frames in one go
+    private void writeRun(List<Frame> run) throws IOException {
+        ArrayList<Frame> pinned = new ArrayList<>();
+        try {
+            ArrayList<PageWrite> writes = new ArrayList<>();
+            long lsn = 0;
+            for(Frame frame : run){
+                if(!frame.pin()){
+                    continue;
+                }
+                pinned.add(frame);
+                synchronized(frame){
+                    if(frame.unwritten){
+                        writes.add(new PageWrite(frame, frame.page, frame.version, frame.lsn));
+                        lsn = Math.max(lsn, frame.lsn);
+                    }
+                }
+            }
+            if(writes.isEmpty()){
+                return;
+            }
+            // a no-op unless a page was logged again since the batch was forced
+            Database.getLogFile().forceUpTo(lsn);
+            ArrayList<Page> pages = new ArrayList<>();
+            for(PageWrite w : writes){
+                pages.add(w.page);
+            }
+            Database.getCatalog().getDatabaseFile(pages.get(0).getId().getTableId()).writePages(pages);
+            for(PageWrite w : writes){
+                w.frame.written(w.version);
+                Database.getLogFile().pageWritten(w.page.getId(), w.lsn);
+            }
+        } finally {
+            for(Frame frame : pinned){
+                frame.unpin();
+            }
+        }
+    }
+
+    /** Log the pages dirtied by tid without writing them, so that the log
+     * holds every change tid made. Used before a rollback. */
+    void logDirtyPages(TransactionId tid) throws IOException {
+        logFrames(dirtiedBy(tid));
+    }
+
+    private ArrayList<Frame> dirtiedBy(TransactionId tid) {
+        ArrayList<Frame> dirtied = new ArrayList<>();
+        for(Frame frame : framesOf(txnPages.get(tid))){
+            if(tid.equals(frame.page.isDirty())){
+                dirtied.add(frame);
+            }
+        }
+        return dirtied;
+    }
+
+    // the set of pages tid may have dirtied, created on first use
+    private Set<PageId> pagesOf(TransactionId tid) {
+        return txnPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+    }
+
+    // the cached frames of the given pages; pages no longer cached are skipped
+    private ArrayList<Frame> framesOf(Set<PageId> pids) {
+        ArrayList<Frame> cached = new ArrayList<>();
+        if(pids != null){
+            for(PageId pid : pids){
+                Frame frame = frames.get(pid);
+                if(frame != null){
+                    cached.add(frame);
+                }
+            }
+        }
+        return cached;
+    }
+
+    // log the dirty pages among the given frames without writing them
+    private void logFrames(Collection<Frame> toLog) throws IOException {
+        boolean logged = false;
+        for(Frame frame : toLog){
+            Page page = frame.page;
+            TransactionId dirtier = page.isDirty();
+            if(dirtier != null){
+                logPage(frame, page, dirtier);
+                logged = true;
+            }
+        }
+        if(logged){
+            wakeCleaner();
         }
     }
 
-    private synchronized void flushPage(Page page) throws IOException {
-        Database.getCatalog().getDatabaseFile(page.getId()).writePage(page);
+    // after this the page is clean, and the log holds its latest image
+    private long logPage(Frame frame, Page page, TransactionId dirtier) throws IOException {
+        long lsn = Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+        page.markDirty(false, null);
+        frame.writer = dirtier;
+        frame.logged(lsn);
+        return lsn;
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -250,68 +1230,160 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     //Hint: remove a page from the buffer pool **without** flushing it to disk.
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        cache.remove(pid);
+        Frame frame = frames.remove(pid);
+        if(frame != null){
+            frame.retire(true);
+            evictionPolicy.pageRemoved(pid);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
         //todo: need to use transaction?
-        flushPage(cache.get(pid));
+        Frame frame = frames.get(pid);
+        if(frame != null){
+            flushFrames(Collections.singletonList(frame));
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * In NO-FORCE mode the pages are only logged.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Collection<Page> pagesByTs = cache.values();
-        for(Page page:pagesByTs){
-            if(tid.equals(page.isDirty())){
-                flushPage(page);
-            }
+        ArrayList<Frame> dirtied = dirtiedBy(tid);
+        if(noForce){
+            logFrames(dirtied);
+        }else{
+            flushFrames(dirtied);
+        }
+    }
+
+    // evict until there is room for one more frame
+    private void makeRoom() throws DbException {
+        if(frames.size() >= pageLimit){
+            evictPage();
         }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pages that are clean and written are chosen first, then clean pages
+     * whose latest image is only in the log, which are written before they
+     * go. Dirty pages are chosen only in STEAL mode, and only when no clean
+     * page is left.
+     * <p>
+     * The victim is picked and pinned under the eviction latch, so no other
+     * miss picks it too, and written after the latch is let go.
      */
-    private synchronized  void evictPage() throws DbException{
+    private void evictPage() throws DbException{
         // some code goes here
         // not necessary for lab1
-        Page page = evictPolicy();
+        while(frames.size() >= pageLimit){
+            Frame victim;
+            synchronized (evictionLatch){
+                // re-check: another thread may have made room while we waited
+                if(frames.size() < pageLimit){
+                    return;
+                }
+                victim = pinVictim();
+                if(victim == null){
+                    if(evicting == 0){
+                        IOException failure = cleanerFailure;
+                        throw new DbException("No Clean Page to EVICT"
+                                + (failure == null ? "" : "; the page cleaner could not write: " + failure));
+                    }
+                    // the pages being evicted right now may be all there was
+                    try {
+                        evictionLatch.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DbException("interrupted while waiting for a free frame");
+                    }
+                    continue;
+                }
+                evicting++;
+            }
+            try {
+                // may lose a race against a concurrent pin; then pick again
+                evict(victim);
+            } finally {
+                synchronized (evictionLatch){
+                    evicting--;
+                    evictionLatch.notifyAll();
+                }
+            }
+        }
+    }
 
-        try {
-            Database.getCatalog().getDatabaseFile(page.getId()).writePage(page);
-        } catch (IOException e) {
-            throw new DbException("IOExp when evict");
+    // the frame to evict next, pinned, or null if no frame may go; the caller holds evictionLatch
+    private Frame pinVictim() {
+        while(true){
+            PageId victim = evictionPolicy.chooseVictim(pid -> {
+                Frame frame = frames.get(pid);
+                return frame != null && frame.isEvictable();
+            });
+            if(victim == null){
+                victim = evictionPolicy.chooseVictim(pid -> {
+                    Frame frame = frames.get(pid);
+                    return frame != null && frame.isCandidate();
+                });
+            }
+            if(victim == null && steal){
+                victim = evictionPolicy.chooseVictim(pid -> {
+                    Frame frame = frames.get(pid);
+                    return frame != null && frame.isUnpinned();
+                });
+            }
+            if(victim == null){
+                return null;
+            }
+            Frame frame = frames.get(victim);
+            if(frame != null && frame.pin()){
+                return frame;
+            }
+            // discarded since it was chosen
         }
-        discardPage(page.getId());
     }
 
-    /*
-     * Random Policy................................
-     */
-    private synchronized Page evictPolicy() throws DbException {
-        Set<Map.Entry<PageId, Page>> entrySet = cache.entrySet();
-//        PageId pageId = null;
-        for(Map.Entry<PageId, Page> entry : entrySet){
-            if(entry.getValue().isDirty() == null){
-                return entry.getValue();
+    // drop pid from the pool if it is unpinned, writing it first if need be;
+    // dirty pages only go in STEAL mode
+    private boolean tryEvict(PageId pid) throws DbException {
+        Frame frame = frames.get(pid);
+        if(frame == null || !frame.pin()){
+            return false;
+        }
+        return evict(frame);
+    }
+
+    // write a frame pinned by the caller if need be, then unpin it and drop
+    // it from the pool, unless someone else pinned or dirtied it meanwhile
+    private boolean evict(Frame frame) throws DbException {
+        PageId pid = frame.page.getId();
+        boolean dirty = frame.page.isDirty() != null;
+        if(dirty ? steal : frame.isUnwritten()){
+            keepCommittedImage(frame);
+            try {
+                flushFrames(Collections.singletonList(frame));
+            } catch (IOException e) {
+                frame.unpin();
+                throw new DbException("could not write page " + pid + " back: " + e);
             }
         }
-        throw new DbException("No Clean Page to EVICT");
-//        Object[] pageIds =  pageIds_.toArray();
-//
-//        int i = Math.abs(new Random().nextInt()) % pageIds.length;
-//        return (PageId) pageIds[i];
+        if(!frame.unpinAndRetire()){
+            return false;
+        }
+        frames.remove(pid, frame);
+        evictionPolicy.pageRemoved(pid);
+        return true;
     }
 }
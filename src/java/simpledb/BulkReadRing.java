@@ -0,0 +1,43 @@
+package simpledb;
+
+/**
+ * A small ring of buffer pool frames private to one large sequential scan,
+ * in the spirit of PostgreSQL's buffer access strategies. Pages the scan has
+ * to read from disk still live in the shared page table, but once the ring is
+ * full each new page takes over the frame of the oldest page the scan read
+ * itself instead of asking the eviction policy for a victim. A scan of a
+ * table much larger than the pool therefore only ever occupies a handful of
+ * frames and leaves the rest of the cache alone.
+ * <p>
+ * A ring is used by a single iterator and is not thread safe.
+ *
+ * @see BufferPool#bulkReadRingFor(int)
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BulkReadRing)
+ */
+public class BulkReadRing {
+
+    private final PageId[] frames;
+    private int next = 0;
+
+    BulkReadRing(int size) {
+        frames = new PageId[size];
+    }
+
+    /**
+     * Record that the scan brought pid into the pool.
+     *
+     * @return the page whose frame pid takes over, or null while the ring
+     *         still has unused frames
+     */
+    PageId add(PageId pid) {
+        PageId recycled = frames[next];
+        frames[next] = pid;
+        next = (next + 1) % frames.length;
+        return recycled;
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return frames.length;
+    }
+}
@@ -159,9 +159,12 @@ public class Catalog {
         throw new NoSuchElementException();
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for(DBItem item:dbItems){
+            item.dbFile.close();
+        }
         dbItems.clear();
     }
     
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Every resident page owns a slot on a
+ * circular ring and a reference bit that is set on each access. The clock
+ * hand sweeps the ring, clearing set bits, and picks the first evictable page
+ * whose bit is already clear.
+ * <p>
+ * The ring only changes under the policy's monitor, but an access just sets
+ * the bit of the page's slot, found through a concurrent map, so page hits
+ * never wait for each other or for a sweep.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static final class Slot {
+        final PageId pid;
+        final int index;
+        volatile boolean referenced = true;
+
+        Slot(PageId pid, int index) {
+            this.pid = pid;
+            this.index = index;
+        }
+    }
+
+    //null where a removed page's slot has not been reused yet
+    private final ArrayList<Slot> ring = new ArrayList<>();
+    private final ConcurrentHashMap<PageId, Slot> slotOf = new ConcurrentHashMap<>();
+    //slots freed by removed pages, reused before the ring grows
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand = 0;
+
+    public synchronized void pageAdded(PageId pid) {
+        Slot slot = slotOf.get(pid);
+        if (slot == null) {
+            if (freeSlots.isEmpty()) {
+                slot = new Slot(pid, ring.size());
+                ring.add(slot);
+            } else {
+                slot = new Slot(pid, freeSlots.pop());
+                ring.set(slot.index, slot);
+            }
+            slotOf.put(pid, slot);
+        }
+        slot.referenced = true;
+    }
+
+    public void pageAccessed(PageId pid) {
+        Slot slot = slotOf.get(pid);
+        if (slot != null) {
+            slot.referenced = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Slot slot = slotOf.remove(pid);
+        if (slot != null) {
+            ring.set(slot.index, null);
+            freeSlots.push(slot.index);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        int size = ring.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * size; step++) {
+            Slot slot = ring.get(hand);
+            hand = (hand + 1) % size;
+            if (slot == null) continue;
+            if (slot.referenced) {
+                slot.referenced = false;
+                continue;
+            }
+            if (evictable.test(slot.pid)) {
+                return slot.pid;
+            }
+        }
+        return null;
+    }
+}
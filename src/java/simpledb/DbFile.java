@@ -28,6 +28,19 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk, sorted by page number. A file
+     * may write runs of adjacent pages with a single write.
+     *
+     * @param pages the pages to write, in increasing page number order
+     * @throws IOException if a write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -68,6 +81,18 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples of this DbFile as of tid's
+     * snapshot, reading pages with {@link BufferPool#getSnapshotPage} so
+     * that no locks are taken. Files that cannot read snapshots fall back
+     * to {@link #iterator(TransactionId)}.
+     *
+     * @return an iterator over the tuples in tid's snapshot of this DbFile.
+     */
+    public default DbFileIterator snapshotIterator(TransactionId tid) {
+        return iterator(tid);
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -88,4 +113,31 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Release the operating system resources (open file descriptors) held by
+     * this DbFile. The file stays usable; resources are acquired again on the
+     * next access.
+     */
+    public default void close() {
+    }
+
+    /**
+     * Note that a rollback or recovery has put back an image of one of this
+     * file's pages without going through insertTuple or deleteTuple, so that
+     * any bookkeeping the file keeps about its pages can follow.
+     *
+     * @param page the image put back
+     */
+    public default void pageRestored(Page page) {
+    }
+
+    /**
+     * Write out any bookkeeping this file keeps in memory, on behalf of a
+     * checkpoint. Pages themselves are written by the buffer pool.
+     *
+     * @throws IOException if the write fails
+     */
+    public default void checkpoint() throws IOException {
+    }
 }
@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs a free frame. The BufferPool reports every page that enters or leaves
+ * the pool and every hit in {@link BufferPool#getPage}, so the policy can keep
+ * whatever reference bits or access history it needs.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ * {@link #pageAccessed} is called on every hit, so it must not wait for a
+ * lock shared by all pages, nor for a running {@link #chooseVictim}.
+ *
+ * @see ClockEvictionPolicy
+ * @see LruKEvictionPolicy
+ * @see TwoQEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called after a page has been brought into the buffer pool.
+     *
+     * @param pid the id of the page now resident in the pool
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called whenever a resident page is requested from the buffer pool.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called after a page has left the buffer pool, either because it was
+     * evicted or because it was discarded.
+     *
+     * @param pid the id of the page no longer resident in the pool
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page that should be evicted next. The page is not removed
+     * from the policy; the BufferPool calls {@link #pageRemoved} once it has
+     * actually dropped the page.
+     *
+     * @param evictable tells whether a resident page may be evicted right now
+     *                  (e.g. it is not dirty)
+     * @return the id of the victim, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(Predicate<PageId> evictable);
+}
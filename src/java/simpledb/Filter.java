@@ -41,6 +41,10 @@ public class Filter extends Operator {
             TransactionAbortedException {
         // some code goes here
         super.open();
+        if (child instanceof SeqScan) {
+            // rejected rows are then dropped before they become tuples
+            ((SeqScan) child).setPredicate(p);
+        }
         child.open();
     }
 
@@ -0,0 +1,224 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Free-space map of a HeapFile: one bit per page, set when the page is known
+ * to be full. Inserts use it to go straight to a page with room instead of
+ * reading and locking every page from the start of the file.
+ * <p>
+ * The map is kept in memory; changing a bit is no more than that. It is
+ * written to a sidecar file next to the table (see {@link #fileFor(File)})
+ * only by {@link #writeBack()}, which every checkpoint and closing the table
+ * call, so that it survives restarts. A table that is never checkpointed or
+ * closed after an insert never gets a sidecar file, and writing back the map
+ * of a table whose file is gone deletes the sidecar instead. The file starts
+ * with the number of pages the table had when the map was written, followed
+ * by the bits. When the map is first used and the file is missing, the map
+ * is rebuilt by reading every page of the table from disk once. A file
+ * written when the table was shorter, as after a crash that followed some
+ * growth, keeps its bits for the pages it covers and counts the pages added
+ * since as having room; an insert that finds one of them full marks it, as
+ * for any other stale bit.
+ * <p>
+ * The map is a hint, not part of the transactional state of the table: a
+ * page marked free may turn out to be full (the caller then marks it and
+ * moves on) and a page marked full may have regained room through a delete
+ * that is not reflected yet. A rollback or recovery that puts back an image
+ * of a page sets the page's bit from that image (see {@link #restored}),
+ * and a page read from disk with room on it has its bit cleared.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    // bytes before the bits in the sidecar file: the number of pages they cover
+    private static final int HEADER_SIZE = 4;
+
+    private final HeapFile table;
+    private final File heapFile;
+    private final File file;
+    // bit i set: page i is full; loaded on first use
+    private BitSet full;
+    // the number of pages the bits cover
+    private int numPages;
+    // changed since it was loaded or last written
+    private boolean dirty;
+    // serializes writes of the sidecar file, which happen outside the map's monitor
+    private final Object fileLock = new Object();
+
+    FreeSpaceMap(HeapFile table, File heapFile) {
+        this.table = table;
+        this.heapFile = heapFile;
+        this.file = fileFor(heapFile);
+    }
+
+    /** @return the sidecar file holding the free-space map of the given table file */
+    static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    private BitSet bits() {
+        if (full == null) {
+            int pages = table.numPages();
+            try {
+                full = load(pages);
+            } catch (IOException e) {
+                // rebuild it, it is only a hint
+                Debug.log("free-space map of %s unreadable: %s", file, e);
+            }
+            if (full == null) {
+                full = rebuild(pages);
+                dirty = true;
+            }
+            numPages = pages;
+        }
+        return full;
+    }
+
+    // the map on file, or null if there is none
+    private BitSet load(int pages) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int written = bytes.length < HEADER_SIZE ? -1 : ByteBuffer.wrap(bytes).getInt();
+        if (written < 0) {
+            return null;
+        }
+        BitSet bits = BitSet.valueOf(Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length));
+        if (written != pages) {
+            // pages past the written count start out with room; bits past
+            // the end of a shorter table are dropped
+            bits.clear(Math.min(written, pages), Math.max(bits.length(), pages));
+            dirty = true;
+        }
+        return bits;
+    }
+
+    // read every page of the table from disk
+    private BitSet rebuild(int pages) {
+        BitSet bits = new BitSet(pages);
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), pgNo));
+            if (page.getNumEmptySlots() == 0) {
+                bits.set(pgNo);
+            }
+        }
+        return bits;
+    }
+
+    /** Load the map if it is not loaded yet, before the table grows. */
+    synchronized void load() {
+        bits();
+    }
+
+    /**
+     * Record that the table has grown to the given number of pages. The new
+     * pages have room unless they are marked full.
+     */
+    synchronized void grown(int pages) {
+        bits();
+        if (pages != numPages) {
+            numPages = pages;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Note that a page read from disk has room on it. Only a loaded map is
+     * updated; this never loads the map, so reads of a table nobody inserts
+     * into stay free of it.
+     */
+    synchronized void roomFound(int pgNo) {
+        if (full != null && full.get(pgNo)) {
+            setFull(pgNo, false);
+        }
+    }
+
+    /**
+     * Note that a rollback or recovery has put back an image of a page,
+     * bypassing insertTuple and deleteTuple.
+     *
+     * @param pgNo the page
+     * @param isFull whether the image put back is full
+     */
+    synchronized void restored(int pgNo, boolean isFull) {
+        setFull(pgNo, isFull);
+    }
+
+    /**
+     * Find a page that is not known to be full, searching forward from start
+     * and wrapping around to the beginning of the file.
+     *
+     * @param start the page to start searching at
+     * @param numPages the number of pages in the file
+     * @return the page number, or -1 if every page is full
+     */
+    synchronized int findPage(int start, int numPages) {
+        if (numPages == 0) {
+            return -1;
+        }
+        BitSet bits = bits();
+        start = start % numPages;
+        int pgNo = bits.nextClearBit(start);
+        if (pgNo < numPages) {
+            return pgNo;
+        }
+        pgNo = bits.nextClearBit(0);
+        return pgNo < start ? pgNo : -1;
+    }
+
+    /** Record whether a page is full; the file catches up on the next write back. */
+    synchronized void setFull(int pgNo, boolean isFull) {
+        BitSet bits = bits();
+        if (bits.get(pgNo) != isFull) {
+            bits.set(pgNo, isFull);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the map to its sidecar file if it changed since it was loaded or
+     * last written. If the table file is gone, the sidecar file goes too.
+     */
+    void writeBack() throws IOException {
+        synchronized (fileLock) {
+            if (!heapFile.exists()) {
+                file.delete();
+                return;
+            }
+            ByteBuffer bytes;
+            synchronized (this) {
+                if (full == null || !dirty) {
+                    return;
+                }
+                byte[] packed = full.toByteArray();
+                bytes = ByteBuffer.allocate(HEADER_SIZE + packed.length);
+                bytes.putInt(numPages).put(packed);
+                dirty = false;
+            }
+            try {
+                Files.write(file.toPath(), bytes.array());
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    void close() {
+        try {
+            writeBack();
+        } catch (IOException e) {
+            // the next open finds the map missing or stale and rebuilds it
+            Debug.log("free-space map of %s not written: %s", file, e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -25,6 +26,9 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc td;
+    private final PageChannel channel;
+    private final boolean memoryMapped;
+    private final FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -34,9 +38,39 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * its pages through a memory mapping of the file.
+     * <p>
+     * In mapped mode readPage decodes pages straight from the mapping instead
+     * of issuing a read system call and copying each page into a fresh array.
+     * This suits tables that are loaded once and then mostly scanned. Writes
+     * still go through the file channel and are visible through the mapping;
+     * the file is remapped when it grows past the mapped length.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            whether pages are read through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.channel = new PageChannel(f);
+        this.memoryMapped = memoryMapped;
+        this.freeSpace = new FreeSpaceMap(this, f);
+    }
+
+    /**
+     * @return true if the pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -77,26 +111,32 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     //Here we need to Cache!!!!
     public Page readPage(PageId pid) {
-//        BufferPool bufferPool = Database.getBufferPool();
-        Page page = null;
-//        if((page = bufferPool.isPageCached(pid))!=null)return page;
-
+        int pgNo = pid.getPageNumber();
+        long offset = (long) pgNo * BufferPool.getPageSize();
         try {
-            FileInputStream fi = new FileInputStream(file);
+            if(memoryMapped){
+                ByteBuffer view = channel.map(offset, BufferPool.getPageSize());
+                if(view != null){
+                    return noteFreeSpace(new HeapPage(new HeapPageId(pid.getTableId(), pgNo), view));
+                }
+                // past the end of the file or too large to map, let the read decide
+            }
             byte[] bytes = new byte[BufferPool.getPageSize()];
-
-            int pgNo = pid.getPageNumber();
-            fi.skip(pgNo * BufferPool.getPageSize());
-            // read bytes
-            long readNum = fi.read(bytes);
-            assert readNum == BufferPool.getPageSize();
-
-            page = new HeapPage(new HeapPageId(pid.getTableId(), pgNo), bytes);
+            int readNum = channel.read(offset, bytes);
+            if(readNum < bytes.length){
+                throw new IllegalArgumentException("Read past end of table");
+            }
+            return noteFreeSpace(new HeapPage(new HeapPageId(pid.getTableId(), pgNo), bytes));
         } catch (IOException e) {
-            e.printStackTrace();
-//            return null;
+            throw new RuntimeException(e);
+        }
+    }
+
+    // a page read from disk with room on it may still be marked full after an aborted insert
+    private HeapPage noteFreeSpace(HeapPage page) {
+        if(page.getNumEmptySlots() > 0){
+            freeSpace.roomFound(page.getId().getPageNumber());
         }
-//        bufferPool.CachePage(pid, page);
         return page;
     }
 
@@ -104,14 +144,47 @@ public class HeapFile implements DbFile {
     public void  writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile ra = new RandomAccessFile(file,"rw");
-        byte[] bytes = page.getPageData();
-
         int pgNo = page.getId().getPageNumber();
-        ra.seek(pgNo * BufferPool.getPageSize());
-        // write bytes
-        ra.write(bytes);
-        ra.close();
+        channel.write((long) pgNo * BufferPool.getPageSize(), page.getPageData());
+    }
+
+    // see DbFile.java for javadocs; each run of adjacent pages is one write
+    public void writePages(List<Page> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        for(int from = 0; from < pages.size(); ){
+            int first = pages.get(from).getId().getPageNumber();
+            int to = from + 1;
+            while(to < pages.size() && pages.get(to).getId().getPageNumber() == first + (to - from)){
+                to++;
+            }
+            if(to - from == 1){
+                writePage(pages.get(from));
+            }else{
+                byte[] run = new byte[(to - from) * pageSize];
+                for(int i = from; i < to; i++){
+                    System.arraycopy(pages.get(i).getPageData(), 0, run, (i - from) * pageSize, pageSize);
+                }
+                channel.write((long) first * pageSize, run);
+            }
+            from = to;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void close() {
+        channel.close();
+        freeSpace.close();
+    }
+
+    // see DbFile.java for javadocs
+    public void pageRestored(Page page) {
+        freeSpace.restored(page.getId().getPageNumber(),
+                ((HeapPage) page).getNumEmptySlots() == 0);
+    }
+
+    // see DbFile.java for javadocs
+    public void checkpoint() throws IOException {
+        freeSpace.writeBack();
     }
 
     /**
@@ -127,29 +200,106 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        // not necessary for lab1
         ArrayList<Page> pages = new ArrayList<>();
+        BufferPool pool = Database.getBufferPool();
         int tableId = this.getId();
-        int i = 0;
-        int numPage = numPages();
-        for (;i<numPage;i++){
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(tableId, i),Permissions.READ_WRITE);
-            //
-            if(page.getNumEmptySlots() == 0)continue;
+        // each transaction starts looking at a different page, so concurrent
+        // inserters do not all queue up on the first page with room
+        int start = (int) Math.floorMod(tid.getId(), (long) Math.max(1, numPages()));
+        while(true){
+            int pgNo = freeSpace.findPage(start, numPages());
+            if(pgNo < 0){
+                pgNo = appendEmptyPage();
+            }
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            boolean held = pool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            if(page.getNumEmptySlots() == 0){
+                // the map was out of date; we only looked, so let the page go again
+                freeSpace.setFull(pgNo, true);
+                if(!held){
+                    pool.releasePage(tid, pid);
+                }else{
+                    pool.unpinPage(tid, pid);
+                }
+                continue;
+            }
             page.insertTuple(t);
             page.markDirty(true, tid);
+            if(page.getNumEmptySlots() == 0){
+                freeSpace.setFull(pgNo, true);
+            }
             pages.add(page);
-            break;
+            return pages;
         }
+    }
 
-        if(i == numPage){
-            HeapPage newPage = new HeapPage(new HeapPageId(tableId, i), HeapPage.createEmptyPageData());
-            newPage.insertTuple(t);
-            newPage.markDirty(true, tid);
-            pages.add(newPage);
-            writePage(newPage);
+    /**
+     * Append an empty page to the end of the file.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        freeSpace.load();
+        long pos = channel.append(HeapPage.createEmptyPageData());
+        int pgNo = (int) (pos / BufferPool.getPageSize());
+        freeSpace.grown(pgNo + 1);
+        return pgNo;
+    }
+
+    /**
+     * Append pages built in memory to the end of this file, for bulk loading.
+     * The pages are written with a single sequential write instead of going
+     * through the buffer pool one tuple at a time. The page numbers in their
+     * ids are ignored: they become pages numPages() onwards, in list order.
+     * <p>
+     * tid takes an exclusive lock on every new page, and each page is logged
+     * as an update from an empty page, so a rollback or recovery can undo or
+     * redo the load like any other write. The log is forced before the pages
+     * are written.
+     *
+     * @param tid the transaction loading the pages
+     * @param pages the pages to append
+     * @return the number of the first appended page
+     */
+    public int appendPages(TransactionId tid, List<HeapPage> pages)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] batch = new byte[pages.size() * pageSize];
+        for(int i=0;i<pages.size();i++){
+            System.arraycopy(pages.get(i).getPageData(), 0, batch, i * pageSize, pageSize);
+        }
+        synchronized (this){
+            // load the map while it still matches the file
+            freeSpace.load();
+            int first = (int) (channel.size() / pageSize);
+            long[] lsns = new long[pages.size()];
+            ArrayList<Page> empty = new ArrayList<>();
+            for(int i=0;i<pages.size();i++){
+                HeapPageId pid = new HeapPageId(getId(), first + i);
+                Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+                empty.add(new HeapPage(pid, HeapPage.createEmptyPageData()));
+                lsns[i] = Database.getLogFile().logWrite(tid, empty.get(i),
+                        new HeapPage(pid, pages.get(i).getPageData()));
+            }
+            if(!pages.isEmpty()){
+                Database.getLogFile().forceUpTo(lsns[pages.size() - 1]);
+            }
+            // snapshot reads must not see the pages before tid commits
+            Database.getBufferPool().pagesAppended(tid, empty);
+            channel.write((long) first * pageSize, batch);
+            for(int i=0;i<pages.size();i++){
+                Database.getLogFile().pageWritten(new HeapPageId(getId(), first + i), lsns[i]);
+            }
+            freeSpace.grown(first + pages.size());
+            for(int i=0;i<pages.size();i++){
+                if(pages.get(i).getNumEmptySlots() == 0){
+                    freeSpace.setFull(first + i, true);
+                }
+            }
+            return first;
         }
-        return pages;
-        // not necessary for lab1
     }
 
     // see DbFile.java for javadocs
@@ -161,6 +311,7 @@ public class HeapFile implements DbFile {
 
         heapPage.deleteTuple(t);
         heapPage.markDirty(true, tid);
+        freeSpace.setFull(heapPage.getId().getPageNumber(), false);
 
         pages.add(heapPage);
         return pages;
@@ -171,7 +322,25 @@ public class HeapFile implements DbFile {
 //    private List<Tuple> cachedTuples;
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new TupleIterator(this, tid);
+        return new TupleIterator(this, tid, false);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator snapshotIterator(TransactionId tid) {
+        return new TupleIterator(this, tid, true);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy p. The
+     * predicate is evaluated on the page bytes, so no tuple is built for a
+     * row it rejects.
+     *
+     * @param snapshot read tid's snapshot, as {@link #snapshotIterator} does
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean snapshot, Predicate p) {
+        TupleIterator it = new TupleIterator(this, tid, snapshot);
+        it.predicate = p;
+        return it;
     }
 
     public static class TupleIterator implements DbFileIterator{
@@ -183,11 +352,20 @@ public class HeapFile implements DbFile {
         private int pageNo;//正在读或者未度过的page的页码
 //        private HeapPage heapPage;
         private Iterator<Tuple> it;
-
-        TupleIterator(HeapFile hf, TransactionId tid){
+        // the page it iterates over, while it is pinned
+        private HeapPageId pinned;
+        // non-null when the table is large enough to be scanned in bulk read mode
+        private BulkReadRing ring;
+        // read the pages in tid's snapshot, without locks
+        private final boolean snapshot;
+        // rows that fail it are skipped without being materialized; may be null
+        private Predicate predicate;
+
+        TupleIterator(HeapFile hf, TransactionId tid, boolean snapshot){
             // some code goes here
             this.hf = hf;
             this.tid = tid;
+            this.snapshot = snapshot;
             pageNo = hf.numPages();
             it = null;
         }
@@ -210,7 +388,14 @@ public class HeapFile implements DbFile {
 //                tuples.addAll((heapPage.getTuples()));
 //            }
             pageNo = 0;
-
+            ring = Database.getBufferPool().bulkReadRingFor(hf.numPages());
+            if(ring != null && tid != null && !snapshot){
+                // one table lock instead of a lock on every page of the scan;
+                // only tables above a quarter of the pool (see
+                // BufferPool.BULK_READ_POOL_FRACTION) that do not fit in its
+                // free frames are scanned in bulk read mode
+                Database.getBufferPool().lockTable(tid, hf.getId(), Permissions.READ_ONLY);
+            }
         }
 
         /** @return true if there are more tuples available, false if no more tuples or iterator isn't open. */
@@ -220,13 +405,22 @@ public class HeapFile implements DbFile {
                     return false;
 
             if(it == null){
-                HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(),pageNo),
-                        Permissions.READ_WRITE);
-                it = heapPage.iterator();
+                HeapPageId pid = new HeapPageId(hf.getId(),pageNo);
+                HeapPage heapPage;
+                if(snapshot){
+                    heapPage = (HeapPage) Database.getBufferPool().getSnapshotPage(tid, pid, ring);
+                }else{
+                    // covered by the table lock in bulk read mode
+                    heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pid,
+                            ring != null && tid != null ? Permissions.READ_ONLY : Permissions.READ_WRITE, ring);
+                    pinned = pid;
+                }
+                it = heapPage.iterator(predicate);
             }
             if(it.hasNext())return true;
 
             it = null;
+            unpin();
             pageNo++;
             return this.hasNext();//recursion
         }
@@ -263,6 +457,15 @@ public class HeapFile implements DbFile {
         public void rewind() throws DbException, TransactionAbortedException{
             pageNo = 0;
             it = null;
+            unpin();
+        }
+
+        // let go of the page it has moved past
+        private void unpin(){
+            if(pinned != null){
+                Database.getBufferPool().unpinPage(tid, pinned);
+                pinned = null;
+            }
         }
 
         /**
@@ -271,6 +474,8 @@ public class HeapFile implements DbFile {
         public void close(){
             pageNo = hf.numPages();
             it = null;
+            unpin();
+            ring = null;
         }
     }
 }
@@ -2,10 +2,18 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The raw page bytes are the source of truth: fields are decoded on demand
+ * (see {@link #getInt(int, int)} and {@link #getField(int, int)}) and a Tuple
+ * is only built for a slot when it is asked for. The bytes a page is created
+ * from are never modified; the first insert or delete copies them into a
+ * private buffer, so read-only pages such as slices of a memory-mapped file
+ * can be used directly.
  *
  * 一个HeapTable相当于数据库的一个表
  * Heap Table由 多个HeapPage存储
@@ -18,12 +26,19 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];//位图
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+    // byte offset of each field within a tuple
+    private final int[] fieldOffsets;
 
+    // the page itself: header bitmap followed by numSlots fixed size tuples
+    private volatile ByteBuffer data;
+    // false while data is still the buffer the page was created from
+    private boolean owned;
+
+    // before image, or null while the page still equals the data it was created from
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
 
 //    private boolean dirty;
     private TransactionId tid;
@@ -40,34 +55,39 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The array is not copied and must not be modified afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page in the format described
+     * above, starting at the buffer's position, typically a slice of a
+     * memory-mapped HeapFile. Nothing is copied or decoded up front; the
+     * buffer itself is never modified.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());//获取Table的描述
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
         //这里header是以byte为单位的，所以作为位图要自己搞位运算！
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-//            System.out.println(tuples.length);
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
-        setBeforeImage();
+        if (data.remaining() < headerSize + numSlots * td.getSize()) {
+            throw new IOException("page data too short: " + data.remaining() + " bytes");
+        }
+        this.data = data.slice();
+        this.owned = false;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -92,13 +112,26 @@ public class HeapPage implements Page {
     }
     
     /** Return a view of this page before it was modified
-        -- used by recovery */
+        -- used by recovery. The image never shares a memory-mapped
+        buffer, which changes whenever the page is written back. */
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null) {
+                    // not modified since it was read, the data is still the original
+                    if (data.hasArray()) {
+                        return new HeapPage(pid, data);
+                    }
+                    // copy the mapped bytes once, the image may outlive the frame
+                    ByteBuffer src = data.duplicate();
+                    src.clear();
+                    oldData = new byte[src.remaining()];
+                    src.get(oldData);
+                    oldDataRef = oldData;
+                }
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -112,7 +145,7 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = owned ? getPageData() : null;
         }
     }
 
@@ -126,32 +159,98 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Copy the page into a private buffer before its first modification,
+     * keeping the original contents as the before image.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private void makeWritable() {
+        if (owned) {
+            return;
+        }
+        byte[] copy = new byte[data.capacity()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(copy);
+        synchronized(oldDataLock) {
+            if (oldData == null) {
+                oldData = copy.clone();
             }
+        }
+        data = ByteBuffer.wrap(copy);
+        owned = true;
+    }
+
+    private int slotOffset(int slot) {
+        return headerSize + slot * td.getSize();
+    }
+
+    private void checkSlot(int slot) throws NoSuchElementException {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            throw new NoSuchElementException("slot " + slot + " is empty");
+        }
+    }
+
+    /**
+     * Decode an integer field of the tuple in a slot without materializing
+     * the tuple.
+     *
+     * @param slot the slot of the tuple
+     * @param field the index of the field in the tuple
+     * @throws NoSuchElementException if the slot is empty
+     * @throws IllegalArgumentException if the field is not an integer field
+     */
+    public int getInt(int slot, int field) {
+        checkSlot(slot);
+        if (td.getFieldType(field) != Type.INT_TYPE) {
+            throw new IllegalArgumentException("field " + field + " is not an integer field");
+        }
+        return data.getInt(slotOffset(slot) + fieldOffsets[field]);
+    }
+
+    /**
+     * Decode one field of the tuple in a slot without materializing the
+     * tuple.
+     *
+     * @param slot the slot of the tuple
+     * @param field the index of the field in the tuple
+     * @throws NoSuchElementException if the slot is empty or the field cannot
+     *         be parsed
+     */
+    public Field getField(int slot, int field) {
+        checkSlot(slot);
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(slot) + fieldOffsets[field]);
+        try {
+            return td.getFieldType(field).parse(buf);
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Materialize the tuple stored in a slot.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) throws NoSuchElementException {
+        if (slot < 0 || slot >= numSlots) {
+            throw new NoSuchElementException("no slot " + slot);
+        }
+        if (!isSlotUsed(slot)) {
             return null;
         }
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
+        RecordId rid = new RecordId(pid, slot);
         t.setRecordId(rid);
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(slot));
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
-        } catch (java.text.ParseException e) {
+        } catch (java.text.ParseException | java.nio.BufferUnderflowException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
@@ -171,64 +270,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(bytes, 0, Math.min(bytes.length, src.remaining()));
+        return bytes;
     }
 
     /**
@@ -256,11 +302,18 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         RecordId rid = t.getRecordId();
+        if(rid == null || !rid.getPageId().equals(getId())){
+            throw new DbException("Delete Tuple in HeapPage Error!");
+        }
         int tupleNum = rid.getTupleNumber();
-        if(!rid.getPageId().equals(getId()) || !isSlotUsed(tupleNum)){
+        if(tupleNum < 0 || tupleNum >= numSlots || !isSlotUsed(tupleNum)){
             throw new DbException("Delete Tuple in HeapPage Error!");
         }
-        markSlotUsed(rid.getTupleNumber(),false);
+        markSlotUsed(tupleNum,false);
+        // empty slots are kept zeroed
+        int off = slotOffset(tupleNum);
+        for (int i=0; i<td.getSize(); i++)
+            data.put(off + i, (byte) 0);
     }
 
     /**
@@ -273,12 +326,10 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-//        System.out.println("You Call me?");
         if(!t.getTupleDesc().equals(td)){
             throw new DbException("Tuple Desc Mismatch");
         }
         int index;
-        final int numSlots = getNumTuples();
         for(index = 0;index < numSlots;index++){
             if(!isSlotUsed(index))break;
         }
@@ -286,12 +337,69 @@ public class HeapPage implements Page {
         if(index == numSlots){
             throw new DbException(this + "is a Full Page ");
         }
-//        System.out.println("Add Tuple in index " + index + " : " + t);
         markSlotUsed(index,true);
-        tuples[index] = t;
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(index));
+        for (int j=0; j<td.numFields(); j++)
+            t.getField(j).serialize(buf);
         t.setRecordId(new RecordId(pid, index));
     }
 
+    /**
+     * @return a copy of the tuple bytes stored in a slot, or null if the
+     *         slot is empty
+     */
+    byte[] getSlotData(int slot) {
+        if (!isSlotUsed(slot)) {
+            return null;
+        }
+        byte[] bytes = new byte[td.getSize()];
+        ByteBuffer src = data.duplicate();
+        src.position(slotOffset(slot));
+        src.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Overwrite a slot with raw tuple bytes as returned by
+     * {@link #getSlotData(int)}, or empty it if bytes is null. Used by
+     * recovery to redo and undo slot-level log records.
+     */
+    void setSlotData(int slot, byte[] bytes) {
+        makeWritable();
+        int mask = 1<<(slot%8);
+        byte b = data.get(slot/8);
+        data.put(slot/8, (byte) (bytes != null ? b | mask : b & ~mask));
+        int off = slotOffset(slot);
+        for (int i=0; i<td.getSize(); i++)
+            data.put(off + i, bytes != null ? bytes[i] : 0);
+    }
+
+    /**
+     * @return the slots whose header bit or tuple bytes differ between this
+     *         page and other, another version of the same page
+     */
+    int[] changedSlots(HeapPage other) {
+        int[] changed = new int[numSlots];
+        int n = 0;
+        int size = td.getSize();
+        for (int slot=0; slot<numSlots; slot++) {
+            boolean used = isSlotUsed(slot);
+            if (used != other.isSlotUsed(slot)) {
+                changed[n++] = slot;
+            } else if (used) {
+                int off = slotOffset(slot);
+                for (int i=0; i<size; i++) {
+                    if (data.get(off + i) != other.data.get(off + i)) {
+                        changed[n++] = slot;
+                        break;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(changed, n);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -317,15 +425,16 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int cnt = 0;
-        for(byte i:header){
-            for(int j=0;j<8;j++){
-                if(((1<<j)&i)==0){
-                    cnt++;
-                }
+        int used = 0;
+        for(int i=0;i<numSlots/8;i++){
+            used += Integer.bitCount(data.get(i) & 0xff);
+        }
+        for(int i=numSlots/8*8;i<numSlots;i++){
+            if(isSlotUsed(i)){
+                used++;
             }
         }
-        return cnt;
+        return numSlots - used;
     }
 
     /**
@@ -333,7 +442,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        return (header[i/8] & (1<<(i%8))) != 0;
+        return (data.get(i/8) & (1<<(i%8))) != 0;
     }
 
     /**
@@ -343,11 +452,13 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         assert !isSlotUsed(i) == value;
+        makeWritable();
         int mask = 1<<(i%8);
+        byte b = data.get(i/8);
         if(value){
-            header[i/8] = (byte) (header[i/8] | mask);
+            data.put(i/8, (byte) (b | mask));
         }else{
-            header[i/8] = (byte) (header[i/8] & ~mask);
+            data.put(i/8, (byte) (b & ~mask));
         }
         assert isSlotUsed(i) == value;
     }
@@ -355,22 +466,58 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * Tuples are materialized one at a time as the iterator reaches them; the
+     * set of slots visited is fixed when the iterator is created.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return getTuples().iterator();
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy p, or
+     * over all of them if p is null. The predicate is checked on the field
+     * decoded in place, so tuples are only materialized for the slots that
+     * pass it.
+     */
+    public Iterator<Tuple> iterator(final Predicate p) {
+        final byte[] used = new byte[headerSize];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(used);
+        return new Iterator<Tuple>() {
+            private int slot = 0;
+
+            public boolean hasNext() {
+                // skip slots that were empty when the iterator was created
+                // or have been deleted since
+                while (slot < numSlots
+                        && ((used[slot/8] & (1<<(slot%8))) == 0 || !isSlotUsed(slot)
+                            || (p != null && !getField(slot, p.getField()).compare(p.getOp(), p.getOperand()))))
+                    slot++;
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getTuple(slot++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public List<Tuple> getTuples(){
         //这里要把空的slot去掉
         List<Tuple> tuples1 = new ArrayList<>();
-        for(int i=0;i < numSlots;i++){
-            if(isSlotUsed(i)){
-                tuples1.add(tuples[i]);
-            }
+        Iterator<Tuple> it = iterator();
+        while(it.hasNext()){
+            tuples1.add(it.next());
         }
-//        System.out.println("NumSlots: "+numSlots+" Not Null Tuples: "+tuples1.size());
         return tuples1;
     }
 }
-
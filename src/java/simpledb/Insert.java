@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -16,6 +18,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of pages a bulk load fills in memory before appending them in one write */
+    public static final int BULK_LOAD_BATCH_PAGES = 64;
+
     private TupleDesc td;
     private int insertedNum;
     private Tuple tuple;
@@ -36,18 +41,50 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException, TransactionAbortedException {
+        this(t, child, tableId, false);
+    }
+
+    /**
+     * Constructor.
+     * <p>
+     * In bulk mode the tuples are not inserted one at a time through the
+     * BufferPool. Instead they are packed into fresh pages in memory, which
+     * are appended to the table {@link #BULK_LOAD_BATCH_PAGES} at a time with
+     * {@link HeapFile#appendPages}. Existing pages are never touched, so free
+     * space on them is not reused. Bulk mode only applies to heap files;
+     * other tables are loaded normally.
+     *
+     * @param t
+     *            The transaction running the insert.
+     * @param child
+     *            The child operator from which to read tuples to be inserted.
+     * @param tableId
+     *            The table in which to insert tuples.
+     * @param bulk
+     *            Whether to load the tuples in bulk mode.
+     * @throws DbException
+     *             if TupleDesc of child differs from table into which we are to
+     *             insert.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulk)
+            throws DbException, TransactionAbortedException {
         // some code goes here
         this.child = child;
         insertedNum = 0;
 
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         child.open();
-        while (child.hasNext()){
-            try {
-                Database.getBufferPool().insertTuple(t,tableId,child.next());
-            } catch (IOException e) {
-                throw new DbException("IOExpection");
+        try {
+            if (bulk && file instanceof HeapFile) {
+                bulkLoad(t, (HeapFile) file);
+            } else {
+                while (child.hasNext()){
+                    Database.getBufferPool().insertTuple(t,tableId,child.next());
+                    insertedNum ++;
+                }
             }
-            insertedNum ++;
+        } catch (IOException e) {
+            throw new DbException("IOExpection");
         }
         child.close();
         td = new TupleDesc(new Type[]{Type.INT_TYPE});
@@ -55,6 +92,49 @@ public class Insert extends Operator {
         tuple.setField(0,new IntField(insertedNum));
     }
 
+    private void bulkLoad(TransactionId t, HeapFile file)
+            throws DbException, TransactionAbortedException, IOException {
+        // the page numbers are assigned by appendPages
+        HeapPageId scratch = new HeapPageId(file.getId(), 0);
+        List<HeapPage> batch = new ArrayList<>(BULK_LOAD_BATCH_PAGES);
+        // the tuples on each page of the batch
+        List<List<Tuple>> loaded = new ArrayList<>(BULK_LOAD_BATCH_PAGES);
+        HeapPage page = null;
+        while (child.hasNext()) {
+            if (page == null || page.getNumEmptySlots() == 0) {
+                if (batch.size() == BULK_LOAD_BATCH_PAGES) {
+                    appendBatch(t, file, batch, loaded);
+                }
+                page = new HeapPage(scratch, HeapPage.createEmptyPageData());
+                batch.add(page);
+                loaded.add(new ArrayList<>());
+            }
+            Tuple tup = child.next();
+            page.insertTuple(tup);
+            loaded.get(loaded.size() - 1).add(tup);
+            insertedNum ++;
+        }
+        if (!batch.isEmpty()) {
+            appendBatch(t, file, batch, loaded);
+        }
+    }
+
+    // append the pages, then move the record ids insertTuple gave the tuples
+    // off the scratch page onto the pages they ended up on
+    private void appendBatch(TransactionId t, HeapFile file, List<HeapPage> batch,
+            List<List<Tuple>> loaded)
+            throws DbException, TransactionAbortedException, IOException {
+        int first = file.appendPages(t, batch);
+        for (int i = 0; i < loaded.size(); i++) {
+            HeapPageId pid = new HeapPageId(file.getId(), first + i);
+            for (Tuple tup : loaded.get(i)) {
+                tup.setRecordId(new RecordId(pid, tup.getRecordId().getTupleNumber()));
+            }
+        }
+        batch.clear();
+        loaded.clear();
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return td;
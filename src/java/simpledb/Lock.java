@@ -1,11 +1,11 @@
 package simpledb;
 
 public class Lock {
-    public Permissions permissions;
+    public LockMode mode;
     public TransactionId transactionId;
 
-    public Lock(Permissions permissions, TransactionId transactionId){
-        this.permissions = permissions;
+    public Lock(LockMode mode, TransactionId transactionId){
+        this.mode = mode;
         this.transactionId = transactionId;
     }
 }
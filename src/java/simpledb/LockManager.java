@@ -1,191 +1,722 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Multi-granularity locks on tables, pages and tuples (see {@link LockMode}).
+ * A page lock comes with an intention lock on its table, and a tuple lock
+ * with intention locks on its page and table. A request covered by a lock
+ * the transaction already holds on a coarser object, like reading a page of
+ * a table it has locked in S, takes no lock at all, so a scan that locks its
+ * table up front ({@link #lockTable}) leaves a single entry in the table.
+ * <p>
+ * Once a transaction holds {@link #setEscalationThreshold(int) many} page
+ * and tuple locks in one table, it tries to trade them for a single S or X
+ * lock on the table. Escalation never waits: if another transaction holds a
+ * conflicting lock on the table, the fine-grained locks are kept.
+ * <p>
+ * The lock table is hashed on the locked object and split into stripes,
+ * each guarded by its own lock, so transactions locking different objects
+ * rarely contend. An object has an entry only while someone holds or waits
+ * for a lock on it: the entry is dropped with its last lock, so the table
+ * stays as big as the set of locked objects.
+ * <p>
+ * A request that conflicts with the holders of an object, or that would
+ * jump ahead of earlier waiters, joins the object's FIFO wait queue and
+ * parks on a Condition of its own. Releasing a lock hands the object over:
+ * the waiters at the head of the queue are granted in order for as long as
+ * they are compatible, so a run of shared requests is granted together. A
+ * holder converting its lock to a stronger mode waits ahead of everyone
+ * else, since the waiters would otherwise wait for it anyway.
+ * <p>
+ * Deadlocks are found with a waits-for graph that is kept up to date as
+ * requests queue up, are granted or give up: a waiter waits for the holders
+ * of conflicting locks and for the conflicting requests queued ahead of it.
+ * A cycle can only appear when an edge is added, so only then is the graph
+ * searched, starting from the waiter that got the new edge, until no cycle
+ * through it is left. One transaction of each cycle found is picked as the
+ * victim (see {@link VictimPolicy}); its request fails with a
+ * TransactionAbortedException.
+ * <p>
+ * Each transaction also has a list of the objects it holds locks on.
+ * Releasing a transaction's locks walks that list, so it costs O(locks held)
+ * no matter how many objects other transactions have locked.
+ */
 public class LockManager {
-    private  Map<PageId, Set<Lock>> transactionLocks = new HashMap<>();
-
-    public  synchronized void addLock(PageId pageId, TransactionId transactionId, Permissions permissions){
-        synchronized (this){
-            Set<Lock> locks = transactionLocks.computeIfAbsent(pageId, k -> new HashSet<>());
-
-//        locks.add(new Lock(permissions, transactionId));
-            for(Lock lock : locks){
-                if(lock.transactionId == null)continue;
-                if ((lock.transactionId.equals(transactionId))){
-                    if(permissions == lock.permissions)return;
-                    //upgrade
-                    if(permissions == Permissions.READ_WRITE){
-                        lock.permissions = Permissions.READ_WRITE;
-                    }
-                    return;
+    // a power of two, so a stripe is picked by masking the hash
+    private static final int STRIPES = 64;
+
+    /** Default number of page and tuple locks a transaction holds in one
+    table before they are escalated to a table lock. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+    /** Which transaction of a deadlock cycle is aborted. */
+    public enum VictimPolicy {
+        /** the one that started last, which has usually done the least */
+        YOUNGEST,
+        /** the one holding the fewest locks */
+        FEWEST_LOCKS,
+        /** the one that has logged the fewest update bytes, so the least to undo */
+        LEAST_LOG
+    }
+
+    // the key of a whole table in the lock table; pages and tuples are keyed
+    // by their PageId and RecordId
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    private static int tableOf(Object key) {
+        if(key instanceof TableKey){
+            return ((TableKey) key).tableId;
+        }
+        if(key instanceof RecordId){
+            return ((RecordId) key).getPageId().getTableId();
+        }
+        return ((PageId) key).getTableId();
+    }
+
+    // a waiting lock request; granted and aborted are guarded by the stripe's lock
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        final Condition ready;
+        boolean granted = false;
+        // picked as a deadlock victim
+        boolean aborted = false;
+        // picked as a victim but maybe not told yet; guarded by waiters
+        boolean doomed = false;
+
+        Request(TransactionId tid, LockMode mode, boolean upgrade, Condition ready) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.ready = ready;
+        }
+    }
+
+    // the holders of one object's locks, and the requests waiting for it
+    private static class Entry {
+        final Map<TransactionId, Lock> holders = new LinkedHashMap<>();
+        // upgrades first, then the rest in arrival order
+        final List<Request> queue = new ArrayList<>();
+
+        boolean isEmpty() {
+            return holders.isEmpty() && queue.isEmpty();
+        }
+    }
+
+    // the objects that hash to this stripe, guarded by lock
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final HashMap<Object, Entry> entries = new HashMap<>();
+    }
+
+    // a node of the waits-for graph: a waiting transaction and its out edges
+    private static class Waiter {
+        final Object key;
+        final Request req;
+        Set<TransactionId> waitsFor = Collections.emptySet();
+
+        Waiter(Object key, Request req) {
+            this.key = key;
+            this.req = req;
+        }
+    }
+
+    // the locks of one transaction, guarded by its monitor
+    private static class Held {
+        final Set<Object> keys = new HashSet<>();
+        // per table, the number of page and tuple locks
+        final HashMap<Integer, Integer> fine = new HashMap<>();
+        // tables with a page or tuple locked in X
+        final Set<Integer> written = new HashSet<>();
+
+        synchronized void add(Object key, LockMode mode) {
+            if(key instanceof TableKey)return;
+            if(keys.add(key)){
+                fine.merge(tableOf(key), 1, Integer::sum);
+            }
+            if(mode == LockMode.X){
+                written.add(tableOf(key));
+            }
+        }
+
+        synchronized void addTable(TableKey key) {
+            keys.add(key);
+        }
+
+        // @return true if nothing is left
+        synchronized boolean remove(Object key) {
+            if(keys.remove(key) && !(key instanceof TableKey)){
+                fine.computeIfPresent(tableOf(key), (t, n) -> n == 1 ? null : n - 1);
+            }
+            return keys.isEmpty();
+        }
+
+        synchronized int size() {
+            return keys.size();
+        }
+
+        synchronized int fineLocks(int tableId) {
+            return fine.getOrDefault(tableId, 0);
+        }
+
+        synchronized boolean wrote(int tableId) {
+            return written.contains(tableId);
+        }
+
+        synchronized List<Object> keys() {
+            return new ArrayList<>(keys);
+        }
+
+        synchronized List<Object> fineKeys(int tableId) {
+            List<Object> found = new ArrayList<>();
+            for(Object key : keys){
+                if(!(key instanceof TableKey) && tableOf(key) == tableId){
+                    found.add(key);
                 }
             }
+            return found;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    // per transaction, the objects it holds a lock on
+    private final ConcurrentHashMap<TransactionId, Held> held = new ConcurrentHashMap<>();
+    // the waits-for graph, guarded by its monitor; taken after a stripe's lock, never before
+    private final HashMap<TransactionId, Waiter> waiters = new HashMap<>();
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    public LockManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** Choose which transaction of a deadlock is aborted; the default is the youngest. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        victimPolicy = policy;
+    }
+
+    /**
+     * Set how many page and tuple locks a transaction may hold in one table
+     * before they are escalated to a single table lock.
+     */
+    public void setEscalationThreshold(int locks) {
+        if(locks < 1){
+            throw new IllegalArgumentException("bad escalation threshold " + locks);
+        }
+        escalationThreshold = locks;
+    }
+
+    private Stripe stripe(Object key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    // whether tid could hold a lock in mode next to the other holders of the object
+    private static boolean compatible(Entry entry, TransactionId tid, LockMode mode) {
+        for(Lock lock : entry.holders.values()){
+            if(lock.transactionId.equals(tid))continue;
+            if(!mode.isCompatible(lock.mode)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void addLock(PageId pageId, TransactionId transactionId, Permissions permissions){
+        Stripe stripe = stripe(pageId);
+        stripe.lock.lock();
+        try {
+            grant(stripe.entries.computeIfAbsent(pageId, k -> new Entry()), pageId, transactionId, LockMode.of(permissions));
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // record the lock in the table and in tid's list; the caller holds the stripe
+    private void grant(Entry entry, Object key, TransactionId transactionId, LockMode mode){
+        // a null transaction (e.g. TableStats scanning a table) waits for
+        // writers, but holds nothing afterwards
+        if(transactionId == null)return;
+        Lock lock = entry.holders.get(transactionId);
+        if(lock != null){
+            //upgrade
+            lock.mode = lock.mode.join(mode);
+        }else{
             //Add first time
-            locks.add(new Lock(permissions, transactionId));
+            lock = new Lock(mode, transactionId);
+            entry.holders.put(transactionId, lock);
         }
+        LockMode granted = lock.mode;
+        // atomic per transaction, so it cannot race with removeLock dropping an empty list
+        held.compute(transactionId, (tid, locks) -> {
+            if(locks == null){
+                locks = new Held();
+            }
+            if(key instanceof TableKey){
+                locks.addTable((TableKey) key);
+            }else{
+                locks.add(key, granted);
+            }
+            return locks;
+        });
+    }
+
+    /*
+     * Grant the waiters at the head of the queue for as long as they fit,
+     * then bring the edges of the remaining waiters up to date. The caller
+     * holds the stripe, and aborts the returned victims after letting go.
+     */
+    private List<Waiter> grantWaiters(Entry entry, Object key){
+        Iterator<Request> it = entry.queue.iterator();
+        while(it.hasNext()){
+            Request req = it.next();
+            if(!compatible(entry, req.tid, req.mode)){
+                break;
+            }
+            it.remove();
+            grant(entry, key, req.tid, req.mode);
+            req.granted = true;
+            req.ready.signal();
+            forget(req);
+        }
+        return updateEdges(entry, key);
     }
 
     public void removeLock(PageId pageId, TransactionId transactionId){
-        synchronized (this){
-            Set<Lock> locks = getLocks(pageId);
-            for(Lock lock: locks){
-                if(lock.transactionId.equals(transactionId)){
-                    locks.remove(lock);
-//                break;
+        release(pageId, transactionId);
+    }
+
+    // drop one of tid's locks, from the table and from tid's list
+    private void release(Object key, TransactionId transactionId){
+        unlock(key, transactionId);
+        held.computeIfPresent(transactionId, (tid, locks) -> locks.remove(key) ? null : locks);
+    }
+
+    // drop tid's lock on key and hand the object to its waiters
+    private void unlock(Object key, TransactionId transactionId){
+        Stripe stripe = stripe(key);
+        List<Waiter> victims;
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.entries.get(key);
+            if(entry == null)return;
+            entry.holders.remove(transactionId);
+            victims = grantWaiters(entry, key);
+            if(entry.isEmpty()){
+                stripe.entries.remove(key);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        abortVictims(victims);
+    }
+
+    /*
+     * Set the out edges of every transaction waiting in the queue of an
+     * object to what it waits for now: the holders of conflicting locks and
+     * the conflicting requests queued ahead of it. Where an edge is new, look
+     * for a cycle through it and pick a victim to break it. The caller holds
+     * the stripe.
+     */
+    private List<Waiter> updateEdges(Entry entry, Object key){
+        List<Waiter> victims = new ArrayList<>();
+        for(int i = 0; i < entry.queue.size(); i++){
+            Request req = entry.queue.get(i);
+            if(req.tid == null){
+                // holds nothing, so nobody can wait for it
+                continue;
+            }
+            Set<TransactionId> waitsFor = new HashSet<>();
+            for(Lock lock : entry.holders.values()){
+                if(!lock.transactionId.equals(req.tid) && !req.mode.isCompatible(lock.mode)){
+                    waitsFor.add(lock.transactionId);
+                }
+            }
+            for(Request ahead : entry.queue.subList(0, i)){
+                if(ahead.tid != null && !ahead.tid.equals(req.tid) && !req.mode.isCompatible(ahead.mode)){
+                    waitsFor.add(ahead.tid);
+                }
+            }
+            synchronized (waiters){
+                if(req.doomed || req.aborted){
+                    // about to give up, so its edges must not close a cycle again
+                    continue;
+                }
+                Waiter w = waiters.get(req.tid);
+                if(w == null || w.req != req){
+                    w = new Waiter(key, req);
+                    waiters.put(req.tid, w);
+                }
+                boolean grew = !w.waitsFor.containsAll(waitsFor);
+                w.waitsFor = waitsFor;
+                if(grew){
+                    // the new edges may close several cycles; break each of them
+                    List<TransactionId> cycle;
+                    while((cycle = findCycle(req.tid)) != null){
+                        Waiter victim = waiters.get(chooseVictim(cycle));
+                        // the victim stops waiting, so it no longer closes any cycle
+                        victim.waitsFor = Collections.emptySet();
+                        victim.req.doomed = true;
+                        victims.add(victim);
+                    }
                 }
             }
         }
+        return victims;
     }
 
-    private synchronized Set<Lock> getLocks(PageId pageId){
-        return transactionLocks.get(pageId);
+    // a cycle of the waits-for graph through start, or null; the caller holds waiters
+    private List<TransactionId> findCycle(TransactionId start){
+        HashMap<TransactionId, TransactionId> parent = new HashMap<>();
+        ArrayDeque<TransactionId> stack = new ArrayDeque<>();
+        stack.push(start);
+        parent.put(start, null);
+        while(!stack.isEmpty()){
+            Waiter w = waiters.get(stack.pop());
+            if(w == null)continue;
+            for(TransactionId next : w.waitsFor){
+                if(next.equals(start)){
+                    List<TransactionId> cycle = new ArrayList<>();
+                    for(TransactionId t = w.req.tid; t != null; t = parent.get(t)){
+                        cycle.add(t);
+                    }
+                    return cycle;
+                }
+                if(!parent.containsKey(next)){
+                    parent.put(next, w.req.tid);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    // the cheapest transaction of the cycle to abort, by the victim policy; ties go to the youngest
+    private TransactionId chooseVictim(List<TransactionId> cycle){
+        TransactionId victim = null;
+        long victimCost = 0;
+        for(TransactionId tid : cycle){
+            long cost;
+            switch(victimPolicy){
+            case FEWEST_LOCKS:
+                Held locks = held.get(tid);
+                cost = locks == null ? 0 : locks.size();
+                break;
+            case LEAST_LOG:
+                cost = Database.getLogFile().getUpdateBytes(tid);
+                break;
+            default:
+                cost = 0;
+            }
+            if(victim == null || cost < victimCost
+                    || (cost == victimCost && tid.getId() > victim.getId())){
+                victim = tid;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    // take a request out of the waits-for graph once it is granted or gave up
+    private void forget(Request req){
+        if(req.tid == null)return;
+        synchronized (waiters){
+            Waiter w = waiters.get(req.tid);
+            if(w != null && w.req == req){
+                waiters.remove(req.tid);
+            }
+        }
+    }
+
+    // wake the victims up to abort; called without holding any stripe
+    private void abortVictims(List<Waiter> victims){
+        for(Waiter victim : victims){
+            Stripe stripe = stripe(victim.key);
+            stripe.lock.lock();
+            try {
+                if(!victim.req.granted){
+                    victim.req.aborted = true;
+                    victim.req.ready.signal();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    // the lock guarding key's entry, so tests can hold a waiter back from waking up
+    ReentrantLock stripeLock(Object key){
+        return stripe(key).lock;
+    }
+
+    /** @return the number of objects with at least one lock on them or waiter for them */
+    int lockedObjects(){
+        int n = 0;
+        for(Stripe stripe : stripes){
+            stripe.lock.lock();
+            try {
+                n += stripe.entries.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return n;
     }
 
     // ....
     //Lock的管理和BufferPool是默认绑定的
     //至少testcase是这么认为...
-    public  synchronized void removeAll(){
-        transactionLocks.clear();
+    public void removeAll(){
+        for(Stripe stripe : stripes){
+            stripe.lock.lock();
+            try {
+                // let the waiters go; with the table gone they would wait forever
+                for(Entry entry : stripe.entries.values()){
+                    for(Request req : entry.queue){
+                        req.granted = true;
+                        req.ready.signal();
+                    }
+                }
+                stripe.entries.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        held.clear();
+        synchronized (waiters){
+            waiters.clear();
+        }
     }
 
-    // 没有同步
     public void releaseLocks(TransactionId tid){
-        synchronized (this){
-            for(Set<Lock> locks : transactionLocks.values()){
-//                for(Lock lock : locks){
-//                    if(lock.transactionId.equals(tid)){
-//                        locks.remove(lock);
-//                    }
-//                }
-                locks.removeIf(lock -> lock.transactionId.equals(tid));
+        Held locks = held.remove(tid);
+        if(locks != null){
+            for(Object key : locks.keys()){
+                unlock(key, tid);
             }
         }
     }
 
-    // Record the pages which some Transaction waits
-    private  Map<TransactionId, Set<PageId>> waitList = new HashMap<>();
-    /*
-     * Detect DeadLock
-     */
-    public  void waitForPage(TransactionId transactionId, PageId pageId) throws TransactionAbortedException {
-        //TODO :如果是想处理并发条件下的死锁，这里的同步需要去掉
-        //      因为死锁的检测依赖于waitList，同步后导致第二个事务无法注册“等待”状态
-        synchronized (this){
-            Set<PageId> pageIds = waitList.computeIfAbsent(transactionId, k -> new HashSet<>());
-            pageIds.add(pageId);
+    // the mode tid holds on key, or null
+    private LockMode modeHeld(TransactionId tid, Object key){
+        if(tid == null)return null;
+        Stripe stripe = stripe(key);
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.entries.get(key);
+            Lock lock = entry == null ? null : entry.holders.get(tid);
+            return lock == null ? null : lock.mode;
+        } finally {
+            stripe.lock.unlock();
         }
     }
 
-    public synchronized void deadLockTest(TransactionId transactionId, PageId pageId) throws TransactionAbortedException {
-        transactionIdHashSet.clear();
-        deadLock(transactionId, pageId);
+    // whether tid's lock on key, if any, already grants mode
+    private boolean covered(TransactionId tid, Object key, LockMode mode){
+        LockMode held = modeHeld(tid, key);
+        return held != null && held.covers(mode);
     }
 
-    public  void cancelWaitState(TransactionId transactionId, PageId pageId){
-       synchronized (this){
-           Set<PageId> pageIds = waitList.computeIfAbsent(transactionId, k -> new HashSet<>());
-           pageIds.remove(pageId);
-       }
+    /**
+     * Acquire a lock on a page for tid, with an intention lock on its table,
+     * parking until it is granted. Nothing is locked if tid's table lock
+     * already covers the page.
+     *
+     * @throws TransactionAbortedException if tid is picked as the victim of
+     *         a deadlock, or the thread is interrupted while waiting
+     */
+    public  void tryToGetPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        if(covered(tid, table, LockMode.of(perm))){
+            return;
+        }
+        acquire(tid, table, LockMode.intentionOf(perm));
+        acquire(tid, pid, LockMode.of(perm));
+        escalate(tid, pid.getTableId());
     }
 
-    public  synchronized Set<PageId> getWaitPages(TransactionId transactionId){
-        return waitList.get(transactionId);
+    /**
+     * Acquire a lock on a single tuple for tid, with intention locks on its
+     * page and table, parking until it is granted. Nothing is locked if a
+     * lock tid holds on the page or table already covers the tuple.
+     *
+     * @throws TransactionAbortedException if tid is picked as the victim of
+     *         a deadlock, or the thread is interrupted while waiting
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode mode = LockMode.of(perm);
+        if(covered(tid, table, mode)){
+            return;
+        }
+        acquire(tid, table, LockMode.intentionOf(perm));
+        if(covered(tid, pid, mode)){
+            return;
+        }
+        acquire(tid, pid, LockMode.intentionOf(perm));
+        acquire(tid, rid, mode);
+        escalate(tid, pid.getTableId());
     }
 
-    private  HashSet<TransactionId> transactionIdHashSet = new HashSet<>();
+    /**
+     * Acquire an S (READ_ONLY) or X (READ_WRITE) lock on a whole table for
+     * tid, parking until it is granted. It covers every page and tuple of
+     * the table.
+     *
+     * @throws TransactionAbortedException if tid is picked as the victim of
+     *         a deadlock, or the thread is interrupted while waiting
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm) throws TransactionAbortedException {
+        acquire(tid, new TableKey(tableId), LockMode.of(perm));
+    }
 
-    private  void deadLock(TransactionId transactionId, PageId pageId) throws TransactionAbortedException {
-        if(transactionIdHashSet.contains(transactionId)){
-            throw new TransactionAbortedException();
-        }
-        transactionIdHashSet.add(transactionId);
-        //当前占有该页面的所有事务
-        //递归检测
-        synchronized (this){
-            Set<Lock> locks = getLocks(pageId);
-            if(locks == null)return;
-            for (Lock lock:locks){
-                if(lock.transactionId.equals(transactionId))continue;
-                Set<PageId> waitList = getWaitPages(lock.transactionId);
-                //如果为空，证明没有在等待的资源(页面)
-                if(waitList == null)return;
-                for(PageId pageId1:waitList){
-                    deadLock(lock.transactionId, pageId1);
+    /*
+     * Trade tid's page and tuple locks in a table for one table lock, S or
+     * X depending on whether any of them is X, once there are enough of
+     * them. Gives up rather than wait for the table.
+     */
+    private void escalate(TransactionId tid, int tableId){
+        if(tid == null)return;
+        Held locks = held.get(tid);
+        if(locks == null || locks.fineLocks(tableId) < escalationThreshold)return;
+        TableKey table = new TableKey(tableId);
+        LockMode mode = locks.wrote(tableId) ? LockMode.X : LockMode.S;
+        Stripe stripe = stripe(table);
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.entries.computeIfAbsent(table, k -> new Entry());
+            Lock mine = entry.holders.get(tid);
+            LockMode target = mine == null ? mode : mine.mode.join(mode);
+            if(!compatible(entry, tid, target) || (mine == null && !entry.queue.isEmpty())){
+                if(entry.isEmpty()){
+                    stripe.entries.remove(table);
                 }
+                return;
             }
+            grant(entry, table, tid, target);
+        } finally {
+            stripe.lock.unlock();
+        }
+        for(Object key : locks.fineKeys(tableId)){
+            release(key, tid);
         }
     }
 
-    public  void tryToGetPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-        Set<Lock> locks = getLocks(pid);
-        waitForPage(tid, pid);
-//        synchronized (this){
-        if(locks != null){
-            if (perm == Permissions.READ_ONLY){
-                boolean flag;
-                do{
-                    flag = true;
-//                    System.out.println(locks.size());
-                    synchronized (this){
-                        for(Lock lock:locks){
-                            //如果该页面被其他进程占用
-//                        System.out.println("?");
-                            if(lock.permissions == Permissions.READ_WRITE && !lock.transactionId.equals(tid)){
-//                            System.out.println(lock.transactionId.hashCode() +" | " + tid.hashCode());
-                                flag = false;
-                                break;
-                            }
-                        }
-                    }
-                    if(!flag){
-//                        waitForPage(tid, pid);
-                        deadLockTest(tid, pid);
-                    }
-                }while (!flag);
-//                System.out.println("R");
-
-            }else {
-                boolean flag;
-                do{
-                    flag = true;
-//                    System.out.println(locks.size());
-                    synchronized (this){
-                        for(Lock lock:locks){
-                            if(lock.transactionId == null)continue;
-                            if(!lock.transactionId.equals(tid)){
-                                flag = false;
-                                break;
-                            }
-                        }
-                    }
+    // acquire a lock on one object, parking until it is granted
+    private void acquire(TransactionId tid, Object key, LockMode mode) throws TransactionAbortedException {
+        Stripe stripe = stripe(key);
+        Request req;
+        List<Waiter> victims;
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.entries.computeIfAbsent(key, k -> new Entry());
+            Lock mine = tid == null ? null : entry.holders.get(tid);
+            if(mine != null && mine.mode.covers(mode)){
+                return;
+            }
+            boolean upgrade = mine != null;
+            LockMode target = upgrade ? mine.mode.join(mode) : mode;
+            if(compatible(entry, tid, target) && (upgrade || entry.queue.isEmpty())){
+                grant(entry, key, tid, target);
+                if(entry.isEmpty()){
+                    stripe.entries.remove(key);
+                }
+                return;
+            }
+            req = new Request(tid, target, upgrade, stripe.lock.newCondition());
+            int at = entry.queue.size();
+            if(upgrade){
+                at = 0;
+                while(at < entry.queue.size() && entry.queue.get(at).upgrade){
+                    at++;
+                }
+            }
+            entry.queue.add(at, req);
+            victims = updateEdges(entry, key);
+        } finally {
+            stripe.lock.unlock();
+        }
 
-                    if(!flag){
-//                        waitForPage(tid, pid);
-                        deadLockTest(tid, pid);
-                    }
-//                    System.out.println("W");
-                }while (!flag);
+        try {
+            abortVictims(victims);
+            stripe.lock.lock();
+            try {
+                while(!req.granted && !req.aborted){
+                    req.ready.await();
+                }
+                if(req.granted){
+                    return;
+                }
+            } finally {
+                stripe.lock.unlock();
             }
+            throw new TransactionAbortedException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            if(!req.granted){
+                abandon(stripe, key, req);
+            }
+            forget(req);
         }
-//        }
+    }
 
-        // some code goes here
-        cancelWaitState(tid, pid);
-        addLock(pid, tid,perm);
+    // take a request that gave up out of the queue; the waiters behind it may fit now
+    private void abandon(Stripe stripe, Object key, Request req){
+        List<Waiter> victims;
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.entries.get(key);
+            if(entry == null || !entry.queue.remove(req))return;
+            victims = grantWaiters(entry, key);
+            if(entry.isEmpty()){
+                stripe.entries.remove(key);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        abortVictims(victims);
     }
 
+    /** @return true if tid holds a lock on the page, or a table lock that covers reading it */
     public boolean holdsLock(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
         // some code goes here
         // not necessary for lab1|lab2
-        synchronized (this){
-            Set<Lock> locks = getLocks(pid);
-            for(Lock lock: locks){
-                if(lock.transactionId.equals(tid)){
-                    return true;
-                }
-            }
-        }
-        return false;
+        return modeHeld(tid, pid) != null || covered(tid, new TableKey(pid.getTableId()), LockMode.S);
+    }
+
+    /** @return true if tid holds an exclusive lock on the page, or on its whole table */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        return covered(tid, pid, LockMode.X) || covered(tid, new TableKey(pid.getTableId()), LockMode.X);
     }
 }
@@ -0,0 +1,52 @@
+package simpledb;
+
+/**
+ * The modes of a multi-granularity lock. A transaction takes S or X on the
+ * object it reads or writes, and the matching intention mode (IS or IX) on
+ * every coarser object that contains it: a page lock comes with an intention
+ * lock on its table, a tuple lock with intention locks on its page and
+ * table. SIX is S plus IX, for reading a whole table while updating some of
+ * it.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: a and b can be held by two transactions at once
+    private static final boolean[][] COMPATIBLE = {
+        //           IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return the weakest mode that grants everything both modes grant */
+    public LockMode join(LockMode other) {
+        if (this == other) return this;
+        if (this == X || other == X) return X;
+        if (this == IS) return other;
+        if (other == IS) return this;
+        // two different modes out of IX, S and SIX
+        return SIX;
+    }
+
+    /** @return true if holding this mode grants everything other grants */
+    public boolean covers(LockMode other) {
+        return join(other) == this;
+    }
+
+    /** @return the mode for reading (S) or writing (X) an object */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /** @return the intention mode to take on the objects containing one locked with perm */
+    public static LockMode intentionOf(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? IX : IS;
+    }
+}
@@ -3,7 +3,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.lang.reflect.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,7 +45,12 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log is addressed by offset as if it were one file, but is
+stored as a control file holding the first long integer and segment
+files of a fixed size holding the rest (see LogSegments).  Offsets never
+change; truncation deletes whole segments.
+
+<li> The first long integer of the log represents the offset of the
 last written checkpoint, or -1 if there are no checkpoints
 
 <li> All additional data in the log consists of log records.  Log
@@ -51,8 +62,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,20 +72,58 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>SLOT_UPDATE records describe a change to a HeapPage by the slots
+that changed: a table id, a page number, and for each changed slot its
+number and its tuple bytes before and after (absent for an empty slot).
+logWrite() writes one instead of an UPDATE record whenever it is
+smaller, which for a change of a few tuples is a few dozen bytes rather
+than two whole pages.  Setting a slot is idempotent, so these records
+can be redone and undone without knowing which of them already reached
+the page on disk.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record offset for each active transaction;
+then an integer count of dirty pages, and for each one its serialized
+page id (an integer count and the integers) and the long integer offset
+of its recLSN, the first record logged for it since its file was last
+written.
 
 </ul>
 
+<p> <u> Fuzzy checkpoints: </u>
+<p>
+
+A checkpoint writes no pages and does not take the buffer pool lock: it
+records the active transaction table and the dirty page table, which the
+log keeps up to date itself (logWrite() adds a page, {@link
+#pageWritten(PageId, long)} removes it again). The pages of the dirty
+page table are then written back in the background by the buffer pool at
+a limited rate, see {@link BufferPool#setCheckpointFlushRate(int)}.
+Recovery starts at the smallest of the checkpoint, the first records of
+the active transactions and the recLSNs, and truncation keeps everything
+from there on.
+
+<p> <u> Group commit: </u>
+<p>
+
+A committing transaction appends its COMMIT record and then waits, outside
+of any monitor, until the log is durable up to that record. A single
+flusher thread forces the log on behalf of every commit queued since its
+last force, so N concurrent commits cost one fsync instead of N. The
+flusher can be told to wait up to a maximum delay for more commits to join
+a batch, until a maximum batch size is reached; see {@link
+#setGroupCommit(long, int)}. Commit and flush counts are kept to show the
+average batch size.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogSegments log;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,8 +131,12 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Default size of the segment files holding the log records */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
@@ -93,6 +146,52 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // bytes of update records per live transaction; read without the log's
+    // lock when choosing a deadlock victim
+    private final ConcurrentHashMap<Long,Long> tidToUpdateBytes = new ConcurrentHashMap<Long,Long>();
+
+    // an entry of the dirty page table
+    private static class DirtyPage {
+        // offset of the first record logged since the page was last written
+        long recOffset;
+        // sequence number of the latest record logged for the page
+        long lastLsn;
+
+        DirtyPage(long recOffset) {
+            this.recOffset = recOffset;
+        }
+    }
+
+    // pages whose file may be behind the log; protected by this
+    private final HashMap<PageId,DirtyPage> dirtyPages = new HashMap<PageId,DirtyPage>();
+
+    // log sequence numbers count appended records; unlike file offsets they
+    // keep growing across truncations
+    long appendedLsn = 0; //protected by this
+
+    /** Default upper bound on the number of commits in one group flush */
+    public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH = 64;
+    // how long an idle flusher thread lingers before it exits
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    private volatile long groupCommitMaxDelayMicros = 0;
+    private volatile int groupCommitMaxBatch = DEFAULT_GROUP_COMMIT_MAX_BATCH;
+
+    // group commit state, protected by commitLock
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitQueued = commitLock.newCondition();
+    private final Condition logDurable = commitLock.newCondition();
+    private long durableLsn = 0;
+    private long requestedLsn = 0;
+    private int queuedCommits = 0;
+    private boolean flusherRunning = false;
+    private boolean flusherStopped = false;
+    private IOException flushError = null;
+    private long groupFlushes = 0;
+    private long groupCommits = 0;
+    // a forceUpTo caller is forcing the log; others wait for it on logDurable
+    private boolean writerForcing = false;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +204,19 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Like {@link #LogFile(File)}, with the size of the segment files
+        that hold the records.
+
+        @param f The log file's name; the segments are kept next to it
+        @param segmentSize The size of a segment file in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        log = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -125,13 +235,14 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendedLsn++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            log.seek(0);
+            log.setLength(0);
+            log.writeLong(NO_CHECKPOINT_ID);
+            log.seek(log.length());
+            currentOffset = log.getFilePointer();
         }
     }
 
@@ -158,32 +269,221 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                log.writeInt(ABORT_RECORD);
+                log.writeLong(tid.getId());
+                log.writeLong(currentOffset);
+                currentOffset = log.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToUpdateBytes.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is durable up to that record.  The
+        force itself is done by the group commit flusher, usually
+        together with the commits of other transactions.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            log.writeInt(COMMIT_RECORD);
+            log.writeLong(tid.getId());
+            log.writeLong(currentOffset);
+            currentOffset = log.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToUpdateBytes.remove(tid.getId());
+            lsn = appendedLsn;
+        }
+        awaitDurable(lsn);
+    }
+
+    /** Configure group commit.
+
+        @param maxDelayMicros how long the flusher waits for more commits
+        to join a batch before forcing the log; 0 forces as soon as a
+        commit is queued (commits arriving during a force still share the
+        next one)
+        @param maxBatch the number of queued commits that makes the
+        flusher force the log without waiting any longer
+    */
+    public void setGroupCommit(long maxDelayMicros, int maxBatch) {
+        if (maxDelayMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("bad group commit settings");
+        }
+        groupCommitMaxDelayMicros = maxDelayMicros;
+        groupCommitMaxBatch = maxBatch;
+    }
+
+    /** @return the number of log forces done by the group commit flusher */
+    public long getGroupFlushCount() {
+        commitLock.lock();
+        try {
+            return groupFlushes;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** @return the number of commits made durable by the group commit flusher */
+    public long getGroupCommitCount() {
+        commitLock.lock();
+        try {
+            return groupCommits;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** @return the average number of commits per group flush, or 0 if
+        there was none yet */
+    public double getAverageCommitBatchSize() {
+        commitLock.lock();
+        try {
+            return groupFlushes == 0 ? 0 : (double) groupCommits / groupFlushes;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // queue a commit with the flusher and wait until the log is durable up to lsn
+    private void awaitDurable(long lsn) throws IOException {
+        commitLock.lock();
+        try {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            queuedCommits++;
+            requestedLsn = Math.max(requestedLsn, lsn);
+            if (!flusherRunning) {
+                flusherRunning = true;
+                flusherStopped = false;
+                Thread flusher = new Thread(this::runFlusher, "LogFile group commit flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            commitQueued.signal();
+            while (durableLsn < lsn) {
+                if (flushError != null) {
+                    throw new IOException("log force failed", flushError);
+                }
+                logDurable.awaitUninterruptibly();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            int batch;
+            commitLock.lock();
+            try {
+                while (queuedCommits == 0) {
+                    if (flusherStopped) {
+                        flusherRunning = false;
+                        return;
+                    }
+                    try {
+                        if (!commitQueued.await(FLUSHER_IDLE_MILLIS, TimeUnit.MILLISECONDS)
+                                && queuedCommits == 0) {
+                            flusherRunning = false;
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        // keep serving commits, they would hang otherwise
+                    }
+                }
+                long delay = TimeUnit.MICROSECONDS.toNanos(groupCommitMaxDelayMicros);
+                long deadline = System.nanoTime() + delay;
+                while (delay > 0 && queuedCommits < groupCommitMaxBatch && !flusherStopped) {
+                    try {
+                        commitQueued.awaitNanos(delay);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    delay = deadline - System.nanoTime();
+                }
+                batch = queuedCommits;
+                queuedCommits = 0;
+            } finally {
+                commitLock.unlock();
+            }
+
+            IOException error = null;
+            long lsn = 0;
+            try {
+                lsn = forceLog();
+            } catch (IOException e) {
+                error = e;
+            }
+
+            commitLock.lock();
+            try {
+                if (error != null) {
+                    flushError = error;
+                } else {
+                    flushError = null;
+                    durableLsn = Math.max(durableLsn, lsn);
+                    groupFlushes++;
+                    groupCommits += batch;
+                }
+                logDurable.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    // force the log without holding this, so appends can go on meanwhile
+    private long forceLog() throws IOException {
+        LogSegments.Unforced unforced;
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+            unforced = log.unforced();
+        }
+        for (FileChannel channel : unforced.channels) {
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // a segment deleted by truncation, nothing in it is needed
+            }
+        }
+        synchronized (this) {
+            log.forced(unforced);
+        }
+        return lsn;
+    }
+
+    // everything up to lsn is on disk
+    private void markDurable(long lsn) {
+        commitLock.lock();
+        try {
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+                logDurable.signalAll();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    private void stopFlusher() {
+        commitLock.lock();
+        try {
+            flusherStopped = true;
+            commitQueued.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,14 +491,35 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the log sequence number of the record; pass it to
+        {@link #forceUpTo(long)} before writing the page to disk
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + log.getFilePointer());
         preAppend();
+        long start = currentOffset;
+        DirtyPage dirty = dirtyPages.get(after.getId());
+        if (dirty == null) {
+            dirty = new DirtyPage(currentOffset);
+            dirtyPages.put(after.getId(), dirty);
+        }
+        dirty.lastLsn = appendedLsn;
+        if (before instanceof HeapPage && after instanceof HeapPage
+                && before.getId().equals(after.getId())) {
+            HeapPage b = (HeapPage) before;
+            HeapPage a = (HeapPage) after;
+            int[] slots = a.changedSlots(b);
+            long slotBytes = (long) slots.length * (INT_SIZE + 1 + 2 * a.td.getSize());
+            if (slotBytes < 2L * BufferPool.getPageSize()) {
+                writeSlotUpdate(tid, b, a, slots);
+                tidToUpdateBytes.merge(tid.getId(), currentOffset - start, Long::sum);
+                return appendedLsn;
+            }
+        }
         /* update record conists of
 
            record type
@@ -207,18 +528,70 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        log.writeInt(UPDATE_RECORD);
+        log.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(log,before);
+        writePageData(log,after);
+        log.writeLong(currentOffset);
+        currentOffset = log.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        tidToUpdateBytes.merge(tid.getId(), currentOffset - start, Long::sum);
+        return appendedLsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Note that a page was written to its file as it was when it was
+        logged in record lsn, or later.  Once its file holds its latest
+        logged image the page leaves the dirty page table.
+
+        @param pid The page written
+        @param lsn The sequence number of the latest record reflected in
+        the image written
+    */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        DirtyPage dirty = dirtyPages.get(pid);
+        if (dirty != null && dirty.lastLsn <= lsn) {
+            dirtyPages.remove(pid);
+        }
+    }
+
+    /* slot update record consists of
+
+       record type
+       transaction id
+       table id
+       page number
+       number of changed slots
+       for each changed slot: slot number, a flag byte (1: used before,
+       2: used after), the tuple bytes before and after when used
+       start offset
+
+       It is written with a single write call.
+    */
+    private void writeSlotUpdate(TransactionId tid, HeapPage before, HeapPage after, int[] slots)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SLOT_UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        out.writeInt(after.getId().getTableId());
+        out.writeInt(after.getId().getPageNumber());
+        out.writeInt(slots.length);
+        for (int slot : slots) {
+            byte[] b = before.getSlotData(slot);
+            byte[] a = after.getSlotData(slot);
+            out.writeInt(slot);
+            out.writeByte((b != null ? 1 : 0) | (a != null ? 2 : 0));
+            if (b != null) out.write(b);
+            if (a != null) out.write(a);
+        }
+        out.writeLong(currentOffset);
+        log.write(bytes.toByteArray());
+        currentOffset = log.getFilePointer();
+    }
+
+    void writePageData(LogSegments log, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -233,49 +606,48 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        log.writeUTF(pageClassName);
+        log.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        log.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            log.writeInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        log.writeInt(pageData.length);
+        log.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(LogSegments log) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = log.readUTF();
+        String idClassName = log.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = log.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = new Integer(log.readInt());
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            int pageSize = log.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            log.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConstructor(pageClass).newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +667,18 @@ public class LogFile {
 
     }
 
+    // the (PageId, byte[]) constructor of a page class
+    private static Constructor<?> pageConstructor(Class<?> pageClass) throws IOException {
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && PageId.class.isAssignableFrom(params[0])
+                    && params[1] == byte[].class) {
+                return c;
+            }
+        }
+        throw new IOException("no (PageId, byte[]) constructor in " + pageClass.getName());
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,150 +691,93 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        log.writeInt(BEGIN_RECORD);
+        log.writeLong(tid.getId());
+        log.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = log.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: no page is written while it is taken,
+        the pages of the dirty page table are handed to the buffer pool
+        to be written back in the background instead.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        ArrayList<PageId> toWriteBack;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + log.getFilePointer());
+            preAppend();
+            long startCpOffset = currentOffset;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //and the dirty page table
+            toWriteBack = new ArrayList<PageId>(dirtyPages.keySet());
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,DirtyPage> e : dirtyPages.entrySet()) {
+                int[] id = e.getKey().serialize();
+                out.writeInt(id.length);
+                for (int i : id) {
+                    out.writeInt(i);
+                }
+                out.writeLong(e.getValue().recOffset);
             }
+            out.writeLong(startCpOffset);
+            log.write(bytes.toByteArray());
+            currentOffset = log.getFilePointer();
+            force();
+
+            //once the CP is durable, make sure the CP location at the
+            // beginning of the log file is updated
+            log.seek(0);
+            log.writeLong(startCpOffset);
+            log.seek(currentOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        Database.getBufferPool().writeBackLater(toWriteBack);
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()) {
+            Database.getCatalog().getDatabaseFile(tables.next()).checkpoint();
+        }
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Only whole segments before the first record
+        recovery may need are deleted; no record is moved or rewritten. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        log.seek(0);
+        long cpLoc = log.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            log.seek(currentOffset);
+            return;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        log.seek(cpLoc);
+        LogRecord cp = readRecord(log);
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
+        long minLogRecord = cp.redoStart();
+        int deleted = log.truncate(minLogRecord);
+        log.seek(currentOffset);
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " SEGMENTS DELETED: " + deleted);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,10 +794,186 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("no live transaction " + tid.getId());
+                }
+                // slot records are undone against the cached page, so
+                // every change of tid on it has to be in the log first
+                Database.getBufferPool().logDirtyPages(tid);
+
+                long end = log.getFilePointer();
+                log.seek(first);
+                ArrayList<LogRecord> updates = new ArrayList<LogRecord>();
+                LogRecord r;
+                while ((r = readRecord(log)) != null) {
+                    if (isUpdate(r) && r.tid == tid.getId()) {
+                        updates.add(r);
+                    }
+                }
+                log.seek(end);
+
+                // newest first, so every slot ends up with its oldest before image
+                Map<PageId,Page> pages = new HashMap<PageId,Page>();
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    apply(pages, updates.get(i), false, true);
+                }
+                installPages(pages);
             }
         }
     }
 
+    private static boolean isUpdate(LogRecord r) {
+        return r.type == UPDATE_RECORD || r.type == SLOT_UPDATE_RECORD;
+    }
+
+    /* Redo or undo an update record against the working copies of the
+       pages touched so far. A full image replaces the page; a slot record
+       changes its slots in the current version of the page, which is
+       taken from the buffer pool if fromPool is set and it is cached
+       there, else from its file. */
+    private void apply(Map<PageId,Page> pages, LogRecord r, boolean redo, boolean fromPool)
+        throws IOException {
+        if (r.type == UPDATE_RECORD) {
+            Page p = redo ? r.after : r.before;
+            pages.put(p.getId(), p);
+            return;
+        }
+        HeapPage p = (HeapPage) pages.get(r.pid);
+        if (p == null) {
+            Page base = fromPool ? Database.getBufferPool().cachedPage(r.pid) : null;
+            HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(r.pid.getTableId());
+            byte[] data;
+            if (base != null) {
+                data = base.getPageData();
+            } else if (r.pid.getPageNumber() < f.numPages()) {
+                data = f.readPage(r.pid).getPageData();
+            } else {
+                // appended, but never written before the crash
+                data = HeapPage.createEmptyPageData();
+            }
+            p = new HeapPage(r.pid, data);
+            pages.put(r.pid, p);
+        }
+        byte[][] values = redo ? r.afterSlots : r.beforeSlots;
+        for (int i = 0; i < r.slots.length; i++) {
+            p.setSlotData(r.slots[i], values[i]);
+        }
+    }
+
+    // write the pages straight to their files and drop any cached copies;
+    // their files are then ahead of the log
+    private void installPages(Map<PageId,Page> pages) throws IOException {
+        for (Page p : pages.values()) {
+            PageId pid = p.getId();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(p);
+            file.pageRestored(p);
+            Database.getBufferPool().discardPage(pid);
+            dirtyPages.remove(pid);
+        }
+    }
+
+    /** One record read back from the log */
+    static class LogRecord {
+        int type;
+        long tid;
+        /** offset of the record in the log file */
+        long offset;
+        /** UPDATE records only */
+        Page before, after;
+        /** SLOT_UPDATE records only: the page, its changed slots and their
+            tuple bytes before and after, null for an empty slot */
+        HeapPageId pid;
+        int[] slots;
+        byte[][] beforeSlots, afterSlots;
+        /** CHECKPOINT records only: active transaction -> offset of its first record */
+        Map<Long,Long> active;
+        /** CHECKPOINT records only: serialized ids of the dirty pages and their recLSNs */
+        List<int[]> dirtyIds;
+        long[] recOffsets;
+
+        /** CHECKPOINT records only: where recovery has to start reading */
+        long redoStart() {
+            long start = offset;
+            for (long first : active.values()) {
+                start = Math.min(start, first);
+            }
+            for (long rec : recOffsets) {
+                start = Math.min(start, rec);
+            }
+            return start;
+        }
+    }
+
+    /** Read the record starting at the current position of log.
+        @return the record, or null at the end of the log, including a
+        record cut short by a crash
+    */
+    LogRecord readRecord(LogSegments log) throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = log.getFilePointer();
+        try {
+            r.type = log.readInt();
+            r.tid = log.readLong();
+            switch (r.type) {
+            case UPDATE_RECORD:
+                r.before = readPageData(log);
+                r.after = readPageData(log);
+                break;
+            case SLOT_UPDATE_RECORD:
+                r.pid = new HeapPageId(log.readInt(), log.readInt());
+                int tupleSize = Database.getCatalog().getTupleDesc(r.pid.getTableId()).getSize();
+                int n = log.readInt();
+                r.slots = new int[n];
+                r.beforeSlots = new byte[n][];
+                r.afterSlots = new byte[n][];
+                for (int i = 0; i < n; i++) {
+                    r.slots[i] = log.readInt();
+                    int used = log.readByte();
+                    if ((used & 1) != 0) {
+                        r.beforeSlots[i] = new byte[tupleSize];
+                        log.readFully(r.beforeSlots[i]);
+                    }
+                    if ((used & 2) != 0) {
+                        r.afterSlots[i] = new byte[tupleSize];
+                        log.readFully(r.afterSlots[i]);
+                    }
+                }
+                break;
+            case CHECKPOINT_RECORD:
+                int count = log.readInt();
+                r.active = new HashMap<Long,Long>();
+                while (count-- > 0) {
+                    long xid = log.readLong();
+                    r.active.put(xid, log.readLong());
+                }
+                count = log.readInt();
+                r.dirtyIds = new ArrayList<int[]>(count);
+                r.recOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    int[] id = new int[log.readInt()];
+                    for (int j = 0; j < id.length; j++) {
+                        id[j] = log.readInt();
+                    }
+                    r.dirtyIds.add(id);
+                    r.recOffsets[i] = log.readLong();
+                }
+                break;
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            default:
+                return null; // garbage after the last complete record
+            }
+            log.readLong(); // start offset
+        } catch (EOFException e) {
+            return null;
+        }
+        return r;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -478,7 +981,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            stopFlusher();
+            log.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,6 +998,101 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                tidToFirstLogRecord.clear();
+                tidToUpdateBytes.clear();
+                if (log.length() < LONG_SIZE) {
+                    log.setLength(0);
+                    log.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = log.getFilePointer();
+                    return;
+                }
+
+                // analysis: replay from the last checkpoint, or from the
+                // first record of a transaction that was active at it or
+                // the recLSN of a page that was dirty at it
+                log.seek(0);
+                long cpLoc = log.readLong();
+                long start = LONG_SIZE;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    log.seek(cpLoc);
+                    LogRecord cp = readRecord(log);
+                    if (cp == null || cp.type != CHECKPOINT_RECORD) {
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    }
+                    start = cp.redoStart();
+                }
+
+                // redo: repeat history, including the rollbacks of aborted
+                // transactions, which happened when their ABORT record was written
+                LinkedHashMap<Long, ArrayList<LogRecord>> live = new LinkedHashMap<Long, ArrayList<LogRecord>>();
+                Map<PageId,Page> pages = new HashMap<PageId,Page>();
+                log.seek(start);
+                LogRecord r;
+                long end = start;
+                while ((r = readRecord(log)) != null) {
+                    end = log.getFilePointer();
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        live.put(r.tid, new ArrayList<LogRecord>());
+                        break;
+                    case CHECKPOINT_RECORD:
+                        for (long xid : r.active.keySet()) {
+                            if (!live.containsKey(xid)) {
+                                live.put(xid, new ArrayList<LogRecord>());
+                            }
+                        }
+                        break;
+                    case UPDATE_RECORD:
+                    case SLOT_UPDATE_RECORD:
+                        apply(pages, r, true, false);
+                        if (!live.containsKey(r.tid)) {
+                            live.put(r.tid, new ArrayList<LogRecord>());
+                        }
+                        live.get(r.tid).add(r);
+                        break;
+                    case ABORT_RECORD:
+                        ArrayList<LogRecord> aborted = live.remove(r.tid);
+                        if (aborted != null) {
+                            for (int i = aborted.size() - 1; i >= 0; i--) {
+                                apply(pages, aborted.get(i), false, false);
+                            }
+                        }
+                        break;
+                    case COMMIT_RECORD:
+                        live.remove(r.tid);
+                        break;
+                    }
+                }
+
+                // undo: roll back the losers, newest update first
+                ArrayList<LogRecord> undo = new ArrayList<LogRecord>();
+                for (ArrayList<LogRecord> updates : live.values()) {
+                    undo.addAll(updates);
+                }
+                Collections.sort(undo, new Comparator<LogRecord>() {
+                    public int compare(LogRecord a, LogRecord b) {
+                        return Long.compare(b.offset, a.offset);
+                    }
+                });
+                for (LogRecord u : undo) {
+                    apply(pages, u, false, false);
+                }
+                installPages(pages);
+                dirtyPages.clear();
+
+                // drop a torn last record and close the losers with ABORT records
+                log.setLength(end);
+                log.seek(end);
+                currentOffset = end;
+                for (long xid : live.keySet()) {
+                    totalRecords++;
+                    appendedLsn++;
+                    log.writeInt(ABORT_RECORD);
+                    log.writeLong(xid);
+                    log.writeLong(currentOffset);
+                    currentOffset = log.getFilePointer();
+                }
+                force();
             }
          }
     }
@@ -501,10 +1100,94 @@ public class LogFile {
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            long pos = log.getFilePointer();
+            log.seek(0);
+            long cpLoc = log.readLong();
+            System.out.println("checkpoint at " + (cpLoc == NO_CHECKPOINT_ID ? "none" : "" + cpLoc));
+            if (log.start() > LONG_SIZE) {
+                // truncated: the first whole record is where recovery starts
+                log.seek(cpLoc);
+                log.seek(readRecord(log).redoStart());
+            }
+            LogRecord r;
+            while ((r = readRecord(log)) != null) {
+                String what;
+                switch (r.type) {
+                case ABORT_RECORD: what = "ABORT"; break;
+                case COMMIT_RECORD: what = "COMMIT"; break;
+                case BEGIN_RECORD: what = "BEGIN"; break;
+                case UPDATE_RECORD: what = "UPDATE " + r.after.getId().getTableId()
+                        + ":" + r.after.getId().getPageNumber(); break;
+                case SLOT_UPDATE_RECORD: what = "UPDATE " + r.pid.getTableId()
+                        + ":" + r.pid.getPageNumber() + " slots " + Arrays.toString(r.slots); break;
+                default: what = "CHECKPOINT active=" + r.active
+                        + " dirty pages=" + r.recOffsets.length; break;
+                }
+                System.out.println(r.offset + ": tid " + r.tid + " " + what);
+            }
+            log.seek(pos);
+        }
     }
 
+    /** Force the whole log while holding this, so nothing can be appended
+        meanwhile.  Meant for shutdown and recovery; page writes use
+        {@link #forceUpTo(long)}, which does not block appenders.
+    */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        LogSegments.Unforced unforced = log.unforced();
+        for (FileChannel channel : unforced.channels) {
+            channel.force(true);
+        }
+        log.forced(unforced);
+        markDurable(appendedLsn);
+    }
+
+    /** @return the bytes of update records a running transaction has
+        logged so far, i.e. roughly how much work its abort would undo */
+    public long getUpdateBytes(TransactionId tid) {
+        Long bytes = tidToUpdateBytes.get(tid.getId());
+        return bytes == null ? 0 : bytes;
+    }
+
+    /** @return the number of bytes in the part of the log that has not
+        been truncated */
+    public synchronized long getLogSize() {
+        return log.length() - log.start();
+    }
+
+    /** Make sure the log is on disk at least up to the record with the
+        given log sequence number, forcing it only if necessary.  This is
+        what the write-ahead rule asks for before a page is written.
+    */
+    public void forceUpTo(long lsn) throws IOException {
+        commitLock.lock();
+        try {
+            // a force already under way may cover lsn; join it instead of
+            // starting another one
+            while (durableLsn < lsn && writerForcing) {
+                logDurable.awaitUninterruptibly();
+            }
+            if (durableLsn >= lsn) {
+                return;
+            }
+            writerForcing = true;
+        } finally {
+            commitLock.unlock();
+        }
+        long forced = 0;
+        try {
+            forced = forceLog();
+        } finally {
+            commitLock.lock();
+            try {
+                writerForcing = false;
+                durableLsn = Math.max(durableLsn, forced);
+                logDurable.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+        }
     }
 
 }
@@ -0,0 +1,272 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The storage behind a LogFile: the log looks like one file addressed by log
+ * offset, but is kept as a small control file holding the log header
+ * (offsets below {@link #HEADER_SIZE}) and fixed size segment files holding
+ * the records. Segment files are named after the log file plus the offset
+ * of their first byte, and are indexed by that offset, so finding the
+ * segment of an offset is a floor lookup. A record may span two segments.
+ * <p>
+ * Offsets never change: truncating the front of the log just deletes the
+ * segments that lie entirely before the cut ({@link #truncate(long)}).
+ * <p>
+ * Like a RandomAccessFile there is a current position that reads and
+ * writes advance. The caller serializes access; only {@link #unforced()}
+ * hands out channels to be forced without holding the caller's lock.
+ */
+class LogSegments {
+
+    /** Size of the log header, kept in the control file */
+    static final int HEADER_SIZE = 8;
+
+    private final File control;
+    private final long segmentSize;
+    private RandomAccessFile header;
+    // segment start offset -> segment file
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    private long pos = 0;
+    private long end;
+    // everything before this offset has been forced
+    private long forcedTo;
+    // header writes so far, and how many of them have been forced
+    private long headerWrites = 0;
+    private long headerForced = 0;
+
+    LogSegments(File control, long segmentSize) throws IOException {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("bad segment size " + segmentSize);
+        }
+        this.control = control;
+        this.segmentSize = segmentSize;
+        header = new RandomAccessFile(control, "rw");
+        end = Math.min(header.length(), HEADER_SIZE);
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d{19}")) {
+                    long start = Long.parseLong(name.substring(prefix.length()));
+                    segments.put(start, new RandomAccessFile(f, "rw"));
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+            end = last.getKey() + last.getValue().length();
+        }
+        forcedTo = end;
+    }
+
+    private File segmentFile(long start) {
+        return new File(control.getPath() + "." + String.format("%019d", start));
+    }
+
+    /** @return the start offset of the segment that holds offset p */
+    private long segmentStart(long p) {
+        return HEADER_SIZE + (p - HEADER_SIZE) / segmentSize * segmentSize;
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    void seek(long p) {
+        pos = p;
+    }
+
+    /** @return the offset just past the last byte of the log */
+    long length() {
+        return end;
+    }
+
+    /** @return the first offset that has not been truncated away */
+    long start() {
+        return segments.isEmpty() ? Math.min(end, HEADER_SIZE) : Math.max(HEADER_SIZE, segments.firstKey());
+    }
+
+    /** Cut the log off at offset n; 0 empties it including the header */
+    void setLength(long n) throws IOException {
+        if (n < HEADER_SIZE) {
+            header.setLength(n);
+        }
+        while (!segments.isEmpty() && segments.lastKey() >= Math.max(n, HEADER_SIZE)) {
+            long start = segments.lastKey();
+            segments.remove(start).close();
+            segmentFile(start).delete();
+        }
+        if (!segments.isEmpty() && n > segments.lastKey()) {
+            segments.lastEntry().getValue().setLength(n - segments.lastKey());
+        }
+        end = Math.min(end, n);
+        forcedTo = Math.min(forcedTo, end);
+    }
+
+    /**
+     * Delete the segments that lie entirely before offset cut.
+     *
+     * @return the number of segments deleted
+     */
+    int truncate(long cut) throws IOException {
+        int deleted = 0;
+        while (!segments.isEmpty() && segments.firstKey() + segmentSize <= cut
+                && segments.firstKey() + segmentSize <= end) {
+            long start = segments.firstKey();
+            segments.remove(start).close();
+            segmentFile(start).delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private void read(byte[] b, int off, int len) throws IOException {
+        if (pos + len > end) {
+            throw new EOFException();
+        }
+        int done = off;
+        while (done < off + len) {
+            int n;
+            if (pos < HEADER_SIZE) {
+                n = (int) Math.min(off + len - done, HEADER_SIZE - pos);
+                header.seek(pos);
+                header.readFully(b, done, n);
+            } else {
+                Map.Entry<Long, RandomAccessFile> seg = segments.floorEntry(pos);
+                if (seg == null || pos >= seg.getKey() + segmentSize) {
+                    throw new IOException("log offset " + pos + " has been truncated");
+                }
+                n = (int) Math.min(off + len - done, seg.getKey() + segmentSize - pos);
+                seg.getValue().seek(pos - seg.getKey());
+                seg.getValue().readFully(b, done, n);
+            }
+            done += n;
+            pos += n;
+        }
+    }
+
+    void write(byte[] b) throws IOException {
+        int done = 0;
+        while (done < b.length) {
+            int n;
+            if (pos < HEADER_SIZE) {
+                n = (int) Math.min(b.length - done, HEADER_SIZE - pos);
+                header.seek(pos);
+                header.write(b, done, n);
+                headerWrites++;
+            } else {
+                long start = segmentStart(pos);
+                RandomAccessFile seg = segments.get(start);
+                if (seg == null) {
+                    seg = new RandomAccessFile(segmentFile(start), "rw");
+                    segments.put(start, seg);
+                }
+                n = (int) Math.min(b.length - done, start + segmentSize - pos);
+                seg.seek(pos - start);
+                seg.write(b, done, n);
+            }
+            done += n;
+            pos += n;
+        }
+        end = Math.max(end, pos);
+    }
+
+    byte readByte() throws IOException {
+        byte[] b = new byte[1];
+        read(b, 0, b.length);
+        return b[0];
+    }
+
+    void readFully(byte[] b) throws IOException {
+        read(b, 0, b.length);
+    }
+
+    int readInt() throws IOException {
+        byte[] b = new byte[4];
+        read(b, 0, b.length);
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    long readLong() throws IOException {
+        byte[] b = new byte[8];
+        read(b, 0, b.length);
+        return ByteBuffer.wrap(b).getLong();
+    }
+
+    String readUTF() throws IOException {
+        byte[] len = new byte[2];
+        read(len, 0, 2);
+        byte[] utf = new byte[2 + ((len[0] & 0xff) << 8 | (len[1] & 0xff))];
+        utf[0] = len[0];
+        utf[1] = len[1];
+        read(utf, 2, utf.length - 2);
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+
+    void writeInt(int v) throws IOException {
+        write(ByteBuffer.allocate(4).putInt(v).array());
+    }
+
+    void writeLong(long v) throws IOException {
+        write(ByteBuffer.allocate(8).putLong(v).array());
+    }
+
+    void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+
+    /** The channels that need forcing to make the log durable up to {@link #length()} */
+    static class Unforced {
+        final List<FileChannel> channels = new ArrayList<FileChannel>();
+        final long end;
+        final long headerWrites;
+
+        Unforced(long end, long headerWrites) {
+            this.end = end;
+            this.headerWrites = headerWrites;
+        }
+    }
+
+    /**
+     * Collect the channels written since the last force. They are forced
+     * outside of the caller's lock, after which the caller reports success
+     * with {@link #forced(Unforced)}. A channel closed meanwhile belongs to
+     * a deleted segment and need not be forced any more.
+     */
+    Unforced unforced() {
+        Unforced u = new Unforced(end, headerWrites);
+        if (headerForced < headerWrites) {
+            u.channels.add(header.getChannel());
+        }
+        if (forcedTo < end) {
+            for (RandomAccessFile seg : segments.tailMap(segmentStart(Math.max(forcedTo, HEADER_SIZE))).values()) {
+                u.channels.add(seg.getChannel());
+            }
+        }
+        return u;
+    }
+
+    void forced(Unforced u) {
+        forcedTo = Math.max(forcedTo, Math.min(u.end, end));
+        headerForced = Math.max(headerForced, u.headerWrites);
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile seg : segments.values()) {
+            seg.close();
+        }
+        segments.clear();
+        header.close();
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). For every resident page the
+ * times of its last K accesses are kept, and the victim is the page whose
+ * K-th most recent access lies furthest in the past. Pages referenced fewer
+ * than K times have an infinite backward K-distance and go first, in LRU
+ * order among themselves, so a page touched once by a sequential scan is
+ * given up before a B+ tree internal page that is hit over and over.
+ * <p>
+ * History is dropped when a page leaves the pool.
+ * <p>
+ * Each page's access times are kept in atomic stamps, so recording an
+ * access takes no lock and page hits never wait for each other. The victim
+ * is found by a pass over the resident pages when it is needed.
+ *
+ * @Threadsafe
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    /** K used by the no-argument constructor */
+    public static final int DEFAULT_K = 2;
+
+    private class History {
+        final PageId pid;
+        //last k access times, times[count % k] is the oldest once count >= k
+        final AtomicLongArray times = new AtomicLongArray(k);
+        final AtomicInteger count = new AtomicInteger();
+
+        History(PageId pid) {
+            this.pid = pid;
+        }
+
+        void access(long now) {
+            times.set(count.getAndIncrement() % k, now);
+        }
+    }
+
+    private final int k;
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentHashMap<PageId, History> histories = new ConcurrentHashMap<>();
+
+    public LruKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past accesses remembered per page, at least 1
+     *          (LRU-1 is plain LRU)
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+    }
+
+    public void pageAdded(PageId pid) {
+        histories.computeIfAbsent(pid, History::new).access(clock.getAndIncrement());
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h != null) {
+            h.access(clock.getAndIncrement());
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        histories.remove(pid);
+    }
+
+    // the page whose K-th most recent access is oldest; pages seen fewer than
+    // K times first, least recently used first; last access times are unique
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = 0, victimLast = 0;
+        for (History h : histories.values()) {
+            int count = h.count.get();
+            if (count == 0) continue;
+            long last = h.times.get((count - 1) % k);
+            // time of the K-th most recent access, -1 if there were fewer than K
+            long kth = count < k ? -1 : h.times.get(count % k);
+            boolean better = victim == null || kth < victimKth
+                    || (kth == victimKth && last < victimLast);
+            if (better && evictable.test(h.pid)) {
+                victim = h.pid;
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A long-lived FileChannel over the backing file of a DbFile. Pages are read
+ * and written with positional I/O, so concurrent readers and writers never
+ * share a file pointer and no descriptor is opened per page. Transfers go
+ * through a direct buffer that each thread reuses across calls, up to the
+ * size of the longest write run the buffer pool issues; larger transfers use
+ * a buffer of their own.
+ * <p>
+ * The channel is opened on first use and reopened on demand after
+ * {@link #close()}, so closing is always safe even if the owning file is
+ * used again later.
+ * <p>
+ * For read-mostly files the whole file can also be mapped into memory with
+ * {@link #map(long, int)}. Writes keep going through the channel; they land
+ * in the same OS page cache that backs the mapping and so are visible through
+ * it.
+ *
+ * @Threadsafe
+ */
+class PageChannel {
+
+    // one direct buffer per thread, grown when a bigger transfer comes along,
+    // up to BufferPool.MAX_WRITE_RUN pages
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+    private final File file;
+    private RandomAccessFile raf;
+    private volatile FileChannel channel;
+    // read-only mapping of the whole file, replaced by a larger one as the file grows
+    private volatile MappedByteBuffer mapped;
+
+    PageChannel(File file) {
+        this.file = file;
+    }
+
+    FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+            }
+            return channel;
+        }
+    }
+
+    private static ByteBuffer buffer(int len) {
+        if (len > BufferPool.MAX_WRITE_RUN * BufferPool.getPageSize()) {
+            // too large to keep around on every thread that did I/O
+            return ByteBuffer.allocateDirect(len);
+        }
+        ByteBuffer buf = buffers.get();
+        if (buf == null || buf.capacity() < len) {
+            buf = ByteBuffer.allocateDirect(len);
+            buffers.set(buf);
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Fill dst with the bytes of the file starting at pos.
+     *
+     * @return the number of bytes read, less than dst.length only at the end
+     *         of the file
+     */
+    int read(long pos, byte[] dst) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = buffer(dst.length);
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos + buf.position());
+            if (n < 0) break;
+        }
+        int read = buf.position();
+        buf.flip();
+        buf.get(dst, 0, read);
+        return read;
+    }
+
+    /** Write all of src to the file starting at pos, growing the file if needed. */
+    void write(long pos, byte[] src) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = buffer(src.length);
+        buf.put(src);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf, pos + buf.position());
+        }
+    }
+
+    /** Append src to the end of the file; the caller must serialize appends. */
+    long append(byte[] src) throws IOException {
+        long pos = channel().size();
+        write(pos, src);
+        return pos;
+    }
+
+    /** @return the current length of the file in bytes */
+    long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Return a read-only view of len bytes of the file starting at pos. The
+     * file is remapped if it grew past the end of the current mapping.
+     *
+     * @return the view, or null if the range lies past the end of the file or
+     *         the file is too large to map in one piece
+     */
+    ByteBuffer map(long pos, int len) throws IOException {
+        MappedByteBuffer m = mapped;
+        if (m == null || pos + len > m.capacity()) {
+            m = remap(pos + len);
+            if (m == null) {
+                return null;
+            }
+        }
+        ByteBuffer view = m.duplicate();
+        view.position((int) pos);
+        view.limit((int) pos + len);
+        return view.slice();
+    }
+
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        if (mapped != null && end <= mapped.capacity()) {
+            return mapped; // someone else remapped first
+        }
+        long size = channel().size();
+        if (end > size || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        mapped = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return mapped;
+    }
+
+    synchronized void close() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // nothing useful to do, the descriptor is gone either way
+        }
+        raf = null;
+        channel = null;
+        // the mapping stays valid after the channel is closed; drop it so
+        // that it can be reclaimed and is not served after a truncation
+        mapped = null;
+    }
+}
@@ -14,6 +14,8 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private TransactionId tid;
     private String tableAlias;
+    private boolean snapshotRead = false;
+    private Predicate predicate;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -71,7 +73,35 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        iterator = newIterator(Database.getCatalog().getDatabaseFile(tableId));
+    }
+
+    /**
+     * Read the table in the transaction's snapshot instead of locking its
+     * pages: the scan sees the table as committed when the transaction made
+     * its first snapshot read, and neither waits for nor blocks writers.
+     * Meant for read-only queries; the scan does see the transaction's own
+     * changes. Takes effect at the next {@link #open()}.
+     */
+    public void setSnapshotRead(boolean snapshotRead) {
+        this.snapshotRead = snapshotRead;
+    }
+
+    /**
+     * Let the scan skip rows that fail p before building tuples for them,
+     * where the table's file supports it. Rows failing p may still be
+     * returned, so callers must check p themselves. Takes effect at the
+     * next {@link #open()}.
+     */
+    public void setPredicate(Predicate p) {
+        this.predicate = p;
+    }
+
+    private DbFileIterator newIterator(DbFile dbFile) {
+        if (predicate != null && dbFile instanceof HeapFile) {
+            return ((HeapFile) dbFile).iterator(tid, snapshotRead, predicate);
+        }
+        return snapshotRead ? dbFile.snapshotIterator(tid) : dbFile.iterator(tid);
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -88,7 +118,7 @@ public class SeqScan implements OpIterator {
         // some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
 //        System.out.println(dbFile.getClass());
-        iterator = dbFile.iterator(tid);
+        iterator = newIterator(dbFile);
         iterator.open();
     }
 
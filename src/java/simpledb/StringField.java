@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -66,6 +67,22 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string to buf in the same format as
+	 * {@link #serialize(DataOutputStream)}.
+	 */
+	public void serialize(ByteBuffer buf) {
+		String s = value;
+		if (s.length() > maxSize) {
+			s = s.substring(0, maxSize);
+		}
+		buf.putInt(s.length());
+		for (int i = 0; i < s.length(); i++)
+			buf.put((byte) s.charAt(i));
+		for (int i = s.length(); i < maxSize; i++)
+			buf.put((byte) 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). A page read for the first time
+ * enters the FIFO queue A1in; when it falls out of A1in only its id is
+ * remembered in the ghost queue A1out. A page that is read again while its id
+ * is still in A1out is considered hot and is admitted to the LRU queue Am.
+ * Pages of a one-pass scan therefore never reach Am and cannot push the hot
+ * set out of the pool.
+ * <p>
+ * Admissions and removals change the queues under the policy's monitor. An
+ * access only stamps the page's entry, found through a concurrent map, with
+ * the time of the access, so page hits take no lock. A1in is ordered by
+ * admission time and Am by last access time; the victim is found by a pass
+ * over the resident pages when it is needed.
+ *
+ * @Threadsafe
+ */
+public class TwoQEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // a resident page, in A1in or, if hot, in Am
+    private static final class Entry {
+        final PageId pid;
+        final boolean hot;
+        final long admitted;
+        volatile long lastAccess;
+
+        Entry(PageId pid, boolean hot, long admitted) {
+            this.pid = pid;
+            this.hot = hot;
+            this.admitted = admitted;
+            this.lastAccess = admitted;
+        }
+    }
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentHashMap<PageId, Entry> resident = new ConcurrentHashMap<>();
+    // the ids remembered in A1out, oldest first
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private int a1inSize = 0;
+    private int amSize = 0;
+
+    /**
+     * Sizes A1in to a quarter of the pool and A1out to half of it, the
+     * settings recommended in the 2Q paper.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public TwoQEvictionPolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param kin target size of the A1in queue
+     * @param kout maximum number of ids remembered in the A1out ghost queue
+     */
+    public TwoQEvictionPolicy(int kin, int kout) {
+        if (kin < 1 || kout < 0) {
+            throw new IllegalArgumentException("bad 2Q queue sizes");
+        }
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (resident.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        boolean hot = a1out.remove(pid);
+        resident.put(pid, new Entry(pid, hot, clock.getAndIncrement()));
+        if (hot) {
+            amSize++;
+        } else {
+            a1inSize++;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // re-references inside A1in are treated as correlated and ignored
+        Entry e = resident.get(pid);
+        if (e != null && e.hot) {
+            e.lastAccess = clock.getAndIncrement();
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Entry e = resident.remove(pid);
+        if (e == null) {
+            return;
+        }
+        if (e.hot) {
+            amSize--;
+            return;
+        }
+        a1inSize--;
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim;
+        if (a1inSize > kin || amSize == 0) {
+            victim = oldestEvictable(false, evictable);
+            if (victim == null) victim = oldestEvictable(true, evictable);
+        } else {
+            victim = oldestEvictable(true, evictable);
+            if (victim == null) victim = oldestEvictable(false, evictable);
+        }
+        return victim;
+    }
+
+    // the head of A1in (first admitted) or Am (least recently used) that may be evicted
+    private PageId oldestEvictable(boolean hot, Predicate<PageId> evictable) {
+        PageId victim = null;
+        long oldest = Long.MAX_VALUE;
+        for (Entry e : resident.values()) {
+            if (e.hot != hot) continue;
+            long t = hot ? e.lastAccess : e.admitted;
+            if (t < oldest && evictable.test(e.pid)) {
+                victim = e.pid;
+                oldest = t;
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Old committed versions of pages, kept for snapshot reads.
+ * <p>
+ * Commits are numbered. A snapshot remembers the number of the last commit
+ * before it began, and sees each page as it was after that commit: the
+ * committed image of the cached page (its before image) if the page has not
+ * been committed since, or else the image a later commit replaced. A commit
+ * keeps the images it replaces only while some snapshot is open, and they
+ * are dropped as soon as no open snapshot is old enough to see them.
+ * <p>
+ * Pages a transaction writes straight to the end of a file, such as
+ * bulk-loaded ones, bypass the buffer pool, so a snapshot read would find
+ * them on disk as if they were committed. Until their writer completes,
+ * they are registered here with the image they had before (an empty page),
+ * and everyone but the writer reads that image instead. Pages stolen from a
+ * running transaction are registered the same way with their committed
+ * image; a page stolen twice keeps the image registered first.
+ * <p>
+ * Publishing a commit's images and reading a page for a snapshot hold the
+ * store's monitor, so a snapshot sees either all or none of the pages of a
+ * commit. Both are in-memory work only.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** A consistent view of the committed state of the database */
+    static final class Snapshot {
+        // the last commit it sees
+        final long commit;
+
+        private Snapshot(long commit) {
+            this.commit = commit;
+        }
+    }
+
+    private long commits = 0;
+    // commit number seen -> number of open snapshots that see it
+    private final TreeMap<Long, Integer> open = new TreeMap<Long, Integer>();
+    // per page, commit number -> the committed image that commit replaced
+    private final HashMap<PageId, TreeMap<Long, Page>> versions = new HashMap<PageId, TreeMap<Long, Page>>();
+    // pages appended by running transactions -> their writer and committed image
+    private final HashMap<PageId, Appended> appended = new HashMap<PageId, Appended>();
+
+    private static final class Appended {
+        final TransactionId writer;
+        final Page committed;
+
+        Appended(TransactionId writer, Page committed) {
+            this.writer = writer;
+            this.committed = committed;
+        }
+    }
+
+    synchronized Snapshot begin() {
+        open.merge(commits, 1, Integer::sum);
+        return new Snapshot(commits);
+    }
+
+    synchronized void end(Snapshot snapshot) {
+        open.computeIfPresent(snapshot.commit, (c, n) -> n == 1 ? null : n - 1);
+        if (open.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        // a version replaced by commit c is seen by the snapshots older than c
+        long oldest = open.firstKey();
+        Iterator<TreeMap<Long, Page>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            TreeMap<Long, Page> chain = it.next();
+            chain.headMap(oldest, true).clear();
+            if (chain.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Register pages a running transaction is about to write to disk before
+     * it commits: appended past the end of their file, or stolen from the
+     * buffer pool.
+     *
+     * @param tid the writer
+     * @param committed the committed image of each page, empty for appended ones
+     */
+    synchronized void appended(TransactionId tid, Collection<Page> committed) {
+        for (Page page : committed) {
+            appended.putIfAbsent(page.getId(), new Appended(tid, page));
+        }
+    }
+
+    /**
+     * Commit tid: make the current contents of the given pages, and the pages
+     * tid appended, their committed image, keeping the images they replace
+     * for the open snapshots.
+     */
+    synchronized void commit(TransactionId tid, Collection<Page> pages) {
+        commits++;
+        Iterator<Appended> it = appended.values().iterator();
+        while (it.hasNext()) {
+            Appended a = it.next();
+            if (a.writer.equals(tid)) {
+                if (!open.isEmpty()) {
+                    versions.computeIfAbsent(a.committed.getId(), pid -> new TreeMap<Long, Page>())
+                            .put(commits, a.committed);
+                }
+                it.remove();
+            }
+        }
+        for (Page page : pages) {
+            if (!open.isEmpty()) {
+                // an appended page was read back from disk: its before image is not committed
+                versions.computeIfAbsent(page.getId(), pid -> new TreeMap<Long, Page>())
+                        .putIfAbsent(commits, page.getBeforeImage());
+            }
+            page.setBeforeImage();
+        }
+    }
+
+    /**
+     * @return the committed images of the pages tid wrote to disk before
+     *         completing, for its abort to put back
+     */
+    synchronized List<Page> writtenAhead(TransactionId tid) {
+        List<Page> images = new ArrayList<Page>();
+        for (Appended a : appended.values()) {
+            if (a.writer.equals(tid)) {
+                images.add(a.committed);
+            }
+        }
+        return images;
+    }
+
+    /** Forget the pages tid appended, once its abort has restored them. */
+    synchronized void abort(TransactionId tid) {
+        appended.values().removeIf(a -> a.writer.equals(tid));
+    }
+
+    /**
+     * @param snapshot the snapshot to read in, or null for the latest committed version
+     * @param cached the version of the page in the buffer pool
+     * @param reader the transaction reading, or null
+     * @return the page as the snapshot sees it
+     */
+    synchronized Page read(Snapshot snapshot, Page cached, TransactionId reader) {
+        Appended a = appended.get(cached.getId());
+        if (a != null && !a.writer.equals(reader)) {
+            return a.committed;
+        }
+        if (snapshot != null) {
+            TreeMap<Long, Page> chain = versions.get(cached.getId());
+            if (chain != null) {
+                // the oldest image replaced after the snapshot began
+                Map.Entry<Long, Page> replaced = chain.higherEntry(snapshot.commit);
+                if (replaced != null) {
+                    return replaced.getValue();
+                }
+            }
+        }
+        return cached.getBeforeImage();
+    }
+}
@@ -172,6 +172,181 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * An insert into a leaf page with room keeps a lock on nothing but that leaf page;
+	 * the root pointer and the internal pages are released on the way down.
+	 */
+	@Test
+	public void testInsertLocksOnlyLeaf() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile f = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		BufferPool bp = Database.getBufferPool();
+
+		// ascending keys leave every leaf page but the last half full after a split
+		int rows = 3 * BTreeUtility.getNumTuplesPerPage(2);
+		TransactionId setup = new TransactionId();
+		for(int i = 0; i < rows; i++) {
+			for(Page p : f.insertTuple(setup, BTreeUtility.getBTreeTuple(i, 2))) {
+				p.markDirty(true, setup);
+			}
+		}
+		bp.transactionComplete(setup);
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(setup, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		bp.transactionComplete(setup);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		ArrayList<Page> dirtied = f.insertTuple(tid, BTreeUtility.getBTreeTuple(rows / 2, 2));
+		assertEquals(1, dirtied.size());
+		assertTrue(bp.holdsLock(tid, dirtied.get(0).getId()));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+	}
+
+	/**
+	 * A bulk load builds the tree bottom-up with pages filled to the fill factor, keeps
+	 * the tuples in key order and leaves a tree that later inserts can go into.
+	 */
+	@Test
+	public void testBulkLoad() throws Exception {
+		BufferPool.setPageSize(1024);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile f = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		BufferPool bp = Database.getBufferPool();
+
+		// every key twice, so some duplicates straddle two leaf pages
+		int rows = 10000;
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < rows; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {i / 2, i}));
+		}
+		TupleIterator sorted = new TupleIterator(f.getTupleDesc(), tuples);
+		sorted.open();
+		assertEquals(rows, f.bulkLoad(tid, sorted, 0.5));
+		sorted.close();
+		bp.transactionComplete(tid);
+
+		// half full pages make three levels at this page size
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(f.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(count, ((IntField) it.next().getField(1)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(rows, count);
+
+		it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(1234)));
+		it.open();
+		count = 0;
+		while(it.hasNext()) {
+			assertEquals(1234, ((IntField) it.next().getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(2, count);
+
+		for(Page p : f.insertTuple(tid, BTreeUtility.getBTreeTuple(new int[] {1234, -1}))) {
+			p.markDirty(true, tid);
+		}
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * The new root is installed even if the root pointer page left the pool while the
+	 * tree was being built.
+	 */
+	@Test
+	public void testBulkLoadRootPtrEvicted() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		final BTreeFile f = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		BufferPool bp = Database.getBufferPool();
+
+		int rows = 2000;
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < rows; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(i, 2));
+		}
+		// halfway through, the clean root pointer page is dropped as eviction would
+		TupleIterator sorted = new TupleIterator(f.getTupleDesc(), tuples) {
+			private int read = 0;
+
+			@Override
+			public Tuple next() {
+				if(++read == 1000) {
+					Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(f.getId()));
+				}
+				return super.next();
+			}
+		};
+		sorted.open();
+		assertEquals(rows, f.bulkLoad(tid, sorted, 1.0));
+		sorted.close();
+		bp.transactionComplete(tid);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = f.iterator(reader);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(rows, count);
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * A bulk load only builds a tree from scratch, out of tuples in key order.
+	 */
+	@Test
+	public void testBulkLoadRejects() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile f = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		tuples.add(BTreeUtility.getBTreeTuple(2, 2));
+		tuples.add(BTreeUtility.getBTreeTuple(1, 2));
+		TupleIterator unsorted = new TupleIterator(f.getTupleDesc(), tuples);
+		unsorted.open();
+		try {
+			f.bulkLoad(tid, unsorted, 1.0);
+			fail("expected out of order input to be rejected");
+		} catch (DbException e) {
+			// expected
+		}
+
+		for(Page p : f.insertTuple(tid, BTreeUtility.getBTreeTuple(1, 2))) {
+			p.markDirty(true, tid);
+		}
+		unsorted.rewind();
+		try {
+			f.bulkLoad(tid, unsorted, 1.0);
+			fail("expected a non-empty tree to be rejected");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -201,6 +201,37 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * In B-link mode a search locks only leaf pages, so it is not held up by a
+	 * writer holding the root pointer and the root page
+	 */
+	@Test(timeout = 10000) public void blinkIndexIterator() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		twoLeafPageFile.setBLinkReads(true);
+		BufferPool bp = Database.getBufferPool();
+		TransactionId writer = new TransactionId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(writer, rootPtrId, Permissions.READ_WRITE);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		bp.getPage(writer, rootId, Permissions.READ_WRITE);
+
+		Field f = new IntField(5);
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN, f));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertTrue(it.next().getField(0).compare(Op.GREATER_THAN, f));
+			count++;
+		}
+		it.close();
+		assertEquals(515, count);
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(writer);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+
+    // heap file whose reads are slow, so that concurrent misses overlap
+    class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        file = new SlowHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Threads that miss on the same page at once share one read and one frame
+     */
+    @Test public void concurrentMissesReadOnce() throws Exception {
+        final PageId pid = new HeapPageId(file.getId(), 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Page[] pages = new Page[THREADS];
+        final Throwable[] errors = new Throwable[THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        pages[n] = Database.getBufferPool().getPage(new TransactionId(), pid,
+                                Permissions.READ_ONLY);
+                    } catch (Throwable e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        for (int i = 0; i < THREADS; i++) {
+            assertNull(errors[i]);
+            assertSame(pages[0], pages[i]);
+        }
+        assertEquals(1, file.reads.get());
+    }
+
+    /**
+     * Readers of different pages all get the right page back
+     */
+    @Test public void concurrentReadersOfDifferentPages() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        TransactionId tid = new TransactionId();
+                        PageId pid = new HeapPageId(file.getId(), n % file.numPages());
+                        Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Throwable e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Throwable e : errors) {
+            assertNull(e);
+        }
+        assertEquals(file.numPages(), file.reads.get());
+    }
+
+    /**
+     * A page stays in its frame while the transaction that fetched it holds
+     * a pin, so fetching it again gives the same page rather than a copy
+     * read after an eviction
+     */
+    @Test public void pinnedPageNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        TransactionId other = new TransactionId();
+        PageId p0 = new HeapPageId(file.getId(), 0);
+        Page page = bp.getPage(tid, p0, Permissions.READ_ONLY);
+        for (int i = 1; i < file.numPages(); i++) {
+            PageId pid = new HeapPageId(file.getId(), i);
+            bp.getPage(other, pid, Permissions.READ_ONLY);
+            bp.unpinPage(other, pid);
+        }
+        assertSame(page, bp.getPage(tid, p0, Permissions.READ_ONLY));
+
+        // one pin per getPage; once both are gone the page may go
+        bp.unpinPage(tid, p0);
+        bp.unpinPage(tid, p0);
+        bp.getPage(other, new HeapPageId(file.getId(), 1), Permissions.READ_ONLY);
+        bp.getPage(other, new HeapPageId(file.getId(), 2), Permissions.READ_ONLY);
+        assertNull(bp.cachedPage(p0));
+    }
+
+    /**
+     * A miss on a pool full of pinned pages fails until the transaction
+     * holding the pins completes
+     */
+    @Test public void pinsHeldUntilComplete() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(file.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(file.getId(), 1), Permissions.READ_ONLY);
+        TransactionId other = new TransactionId();
+        PageId p2 = new HeapPageId(file.getId(), 2);
+        try {
+            bp.getPage(other, p2, Permissions.READ_ONLY);
+            fail("expected the pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+        assertEquals(p2, bp.getPage(other, p2, Permissions.READ_ONLY).getId());
+    }
+
+    /**
+     * Misses that all have to evict from a tiny pool wait for each other's
+     * victims instead of failing
+     */
+    @Test public void concurrentEvictions() throws Exception {
+        Database.resetBufferPool(2);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        TransactionId tid = new TransactionId();
+                        PageId pid = new HeapPageId(file.getId(), n % file.numPages());
+                        Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Throwable e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Throwable e : errors) {
+            assertNull(e);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
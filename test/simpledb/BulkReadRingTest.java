@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BulkReadRingTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 32;
+
+    // heap file that counts how often its pages are read from disk
+    class CountingHeapFile extends HeapFile {
+        int reads = 0;
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile small;
+    private HeapFile large;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        small = new CountingHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(small, SystemTestUtil.getUUID());
+        large = SystemTestUtil.createRandomHeapFile(2, 504 * 100, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+    }
+
+    private int scan(DbFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Only tables larger than a quarter of the pool, and than the frames
+     * still free, are read in bulk mode
+     */
+    @Test public void ringOnlyForLargeScans() throws Exception {
+        assertNull(Database.getBufferPool().bulkReadRingFor(POOL_PAGES));
+        TransactionId tid = new TransactionId();
+        scan(small, tid);
+        assertNull(Database.getBufferPool().bulkReadRingFor(POOL_PAGES / 4));
+        assertNotNull(Database.getBufferPool().bulkReadRingFor(POOL_PAGES - 3));
+        Database.getBufferPool().transactionComplete(tid);
+        BulkReadRing ring = Database.getBufferPool().bulkReadRingFor(100);
+        assertNotNull(ring);
+        assertTrue(ring.size() <= POOL_PAGES / 8);
+    }
+
+    /**
+     * A scan over a large table must not push a small table's pages out of the pool
+     */
+    @Test public void largeScanKeepsWorkingSet() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(504 * 4, scan(small, tid));
+        assertEquals(4, small.reads);
+
+        assertEquals(504 * 100, scan(large, tid));
+
+        assertEquals(504 * 4, scan(small, tid));
+        assertEquals(4, small.reads);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A table that fits in the pool, but would push out most of it, is
+     * scanned through a ring as well
+     */
+    @Test public void poolSizedScanKeepsWorkingSet() throws Exception {
+        HeapFile medium = SystemTestUtil.createRandomHeapFile(2, 504 * (POOL_PAGES - 2), null, null);
+        Database.resetBufferPool(POOL_PAGES);
+        TransactionId tid = new TransactionId();
+        assertEquals(504 * 4, scan(small, tid));
+        assertEquals(4, small.reads);
+
+        assertEquals(504 * (POOL_PAGES - 2), scan(medium, tid));
+
+        assertEquals(504 * 4, scan(small, tid));
+        assertEquals(4, small.reads);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkReadRingTest.class);
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final Predicate<PageId> ANY = pid -> true;
+
+    private static HeapPageId page(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * CLOCK gives a referenced page a second chance
+     */
+    @Test public void clockSecondChance() {
+        ClockEvictionPolicy policy = new ClockEvictionPolicy();
+        for (int i = 0; i < 3; i++) {
+            policy.pageAdded(page(i));
+        }
+        // every page was just referenced; a full sweep clears them and the hand wraps
+        assertEquals(page(0), policy.chooseVictim(ANY));
+        policy.pageRemoved(page(0));
+
+        policy.pageAccessed(page(1));
+        assertEquals(page(2), policy.chooseVictim(ANY));
+
+        // a removed page's slot is reused
+        policy.pageAdded(page(3));
+        assertEquals(page(1), policy.chooseVictim(pid -> !pid.equals(page(2))));
+    }
+
+    /**
+     * LRU-2 evicts pages seen once (a scan) before pages seen repeatedly
+     */
+    @Test public void lruKScanResistant() {
+        LruKEvictionPolicy policy = new LruKEvictionPolicy(2);
+        policy.pageAdded(page(0));
+        policy.pageAccessed(page(0));
+        for (int i = 1; i <= 10; i++) {
+            policy.pageAdded(page(i));
+            PageId victim = policy.chooseVictim(ANY);
+            assertFalse(page(0).equals(victim));
+            if (i > 1) {
+                assertEquals(page(i - 1), victim);
+                policy.pageRemoved(victim);
+            }
+        }
+    }
+
+    /**
+     * LRU-K picks the page whose K-th most recent access is oldest
+     */
+    @Test public void lruKBackwardDistance() {
+        LruKEvictionPolicy policy = new LruKEvictionPolicy(2);
+        policy.pageAdded(page(0));
+        policy.pageAdded(page(1));
+        policy.pageAccessed(page(1));
+        policy.pageAccessed(page(0));
+        // page 0 was used last, but its second most recent access is the older one
+        assertEquals(page(0), policy.chooseVictim(ANY));
+        assertEquals(page(1), policy.chooseVictim(pid -> !pid.equals(page(0))));
+    }
+
+    /**
+     * 2Q only promotes a page to Am once it is re-read after leaving A1in
+     */
+    @Test public void twoQPromotion() {
+        TwoQEvictionPolicy policy = new TwoQEvictionPolicy(1, 2);
+        policy.pageAdded(page(0));
+        assertEquals(page(0), policy.chooseVictim(ANY));
+        policy.pageRemoved(page(0));
+
+        // page 0 is remembered in A1out, so a second read puts it in Am
+        policy.pageAdded(page(0));
+        policy.pageAdded(page(1));
+        policy.pageAdded(page(2));
+        assertEquals(page(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(page(1));
+        policy.pageAdded(page(3));
+        assertEquals(page(2), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * No policy may return a page the BufferPool refuses to evict
+     */
+    @Test public void nothingEvictable() {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+                new ClockEvictionPolicy(), new LruKEvictionPolicy(), new TwoQEvictionPolicy(4) };
+        for (EvictionPolicy policy : policies) {
+            policy.pageAdded(page(0));
+            policy.pageAdded(page(1));
+            assertNull(policy.chooseVictim(pid -> false));
+            policy.pageRemoved(page(0));
+            policy.pageRemoved(page(1));
+            assertNull(policy.chooseVictim(ANY));
+        }
+    }
+
+    /**
+     * Page hits never wait for a victim search in progress
+     */
+    @Test public void accessDuringChooseVictim() throws Exception {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+                new ClockEvictionPolicy(), new LruKEvictionPolicy(), new TwoQEvictionPolicy(4) };
+        for (final EvictionPolicy policy : policies) {
+            policy.pageAdded(page(0));
+            policy.pageAdded(page(1));
+            final CountDownLatch searching = new CountDownLatch(1);
+            final CountDownLatch accessed = new CountDownLatch(1);
+            Thread chooser = new Thread() {
+                public void run() {
+                    policy.chooseVictim(pid -> {
+                        searching.countDown();
+                        try {
+                            accessed.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            // give up waiting
+                        }
+                        return false;
+                    });
+                }
+            };
+            chooser.start();
+            // CLOCK clears reference bits on its first sweep before testing pages
+            assertTrue(searching.await(10, TimeUnit.SECONDS));
+            Thread hit = new Thread() {
+                public void run() {
+                    policy.pageAccessed(page(0));
+                    accessed.countDown();
+                }
+            };
+            hit.start();
+            assertTrue(policy.getClass().getSimpleName(), accessed.await(1, TimeUnit.SECONDS));
+            chooser.join();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -77,6 +77,66 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Closing a HeapFile releases its channel; the next read reopens it
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.close();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        hf.close();
+        hf.close();
+    }
+
+    /**
+     * A memory-mapped HeapFile reads the same pages and sees pages appended
+     * after it was first mapped
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertArrayEquals(((HeapPage) hf.readPage(pid)).getPageData(), page.getPageData());
+
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        HeapPage empty = new HeapPage(next, HeapPage.createEmptyPageData());
+        mapped.writePage(empty);
+        assertEquals(2, mapped.numPages());
+        assertEquals(empty.getNumEmptySlots(),
+                ((HeapPage) mapped.readPage(next)).getNumEmptySlots());
+
+        try {
+            mapped.readPage(new HeapPageId(hf.getId(), 2));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        mapped.close();
+    }
+
+    /**
+     * The before image of a page read through the mapping keeps its
+     * contents when the page is written back to the file
+     */
+    @Test
+    public void beforeImageOfMappedPage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        HeapPage before = page.getBeforeImage();
+        byte[] committed = before.getPageData();
+
+        mapped.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertEquals(504, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+        assertArrayEquals(committed, before.getPageData());
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertEquals(484, before.getNumEmptySlots());
+        mapped.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
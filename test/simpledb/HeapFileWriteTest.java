@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -20,6 +24,10 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
 
     @After public void tearDown() throws Exception {
         Database.getBufferPool().transactionComplete(tid);
+        // dropping the table takes its free-space map along
+        empty.getFile().delete();
+        empty.close();
+        assertFalse(FreeSpaceMap.fileFor(empty.getFile()).exists());
     }
 
     /**
@@ -44,6 +52,134 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go straight to a page with room, using the free-space map
+     * persisted by earlier inserts, and deletes make a full page a target again
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        for (int i = 0; i < 504 * 3; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        empty.close();
+
+        // a fresh file and pool only know what the map on disk tells them
+        final int[] reads = new int[1];
+        HeapFile counting = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads[0]++;
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(counting, "counting");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        counting.insertTuple(tid, t);
+        assertEquals(4, counting.numPages());
+        assertEquals(1, reads[0]);
+        assertEquals(3, t.getRecordId().getPageId().getPageNumber());
+
+        // fill the last page, then free a slot on page 1
+        for (int i = 1; i < 504; ++i) {
+            counting.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(counting.getId(), 1), Permissions.READ_WRITE);
+        counting.deleteTuple(tid, p.iterator().next());
+
+        Tuple u = Utility.getHeapTuple(2, 2);
+        counting.insertTuple(tid, u);
+        assertEquals(4, counting.numPages());
+        assertEquals(1, u.getRecordId().getPageId().getPageNumber());
+        counting.close();
+    }
+
+    /**
+     * A page an aborted transaction filled is a target again
+     */
+    @Test public void abortClearsFullPage() throws Exception {
+        for (int i = 0; i < 503; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // fill the only page in a transaction that aborts
+        TransactionId aborted = new TransactionId();
+        empty.insertTuple(aborted, Utility.getHeapTuple(0, 2));
+        Database.getBufferPool().transactionComplete(aborted, false);
+        assertFalse(FreeSpaceMap.fileFor(empty.getFile()).exists());
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * A map written before the table grew keeps its bits for the pages it
+     * covers; the pages added since count as having room and are only read
+     * when an insert tries them
+     */
+    @Test public void staleMapKeepsCoveredPages() throws Exception {
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        empty.close();
+
+        // a map written while the table had one, full, page
+        File fsm = new File(empty.getFile().getPath() + ".fsm");
+        FileOutputStream out = new FileOutputStream(fsm);
+        out.write(new byte[] { 0, 0, 0, 1, (byte) 0x01 });
+        out.close();
+
+        final ArrayList<Integer> reads = new ArrayList<Integer>();
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads.add(pid.getPageNumber());
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(reopened, "reopened");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        reopened.insertTuple(tid, t);
+        assertEquals(3, reopened.numPages());
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(reads.contains(0));
+        assertTrue(reads.size() <= 2);
+        reopened.close();
+    }
+
+    /**
+     * writePages writes runs of adjacent pages and lone pages alike
+     */
+    @Test public void writePages() throws Exception {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pgNo : new int[] { 0, 1, 2, 4 }) {
+            HeapPage p = new HeapPage(new HeapPageId(empty.getId(), pgNo), HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            pages.add(p);
+        }
+        empty.writePages(pages);
+        assertEquals(5, empty.numPages());
+        for (int pgNo = 0; pgNo < 5; pgNo++) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo));
+            if (pgNo == 3) {
+                assertEquals(504, p.getNumEmptySlots());
+            } else {
+                assertEquals(503, p.getNumEmptySlots());
+                assertEquals(pgNo, ((IntField) p.iterator().next().getField(0)).getValue());
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
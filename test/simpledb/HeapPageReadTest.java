@@ -13,6 +13,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapPageReadTest extends SimpleDbTestBase {
@@ -120,6 +121,53 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getInt() and HeapPage.getField()
+     */
+    @Test public void getFieldInPlace() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            assertEquals(EXAMPLE_VALUES[i][0], page.getInt(i, 0));
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+        }
+        try {
+            page.getInt(20, 0);
+            fail("expected exception");
+        } catch (NoSuchElementException e) {
+        }
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(Predicate): only the rows that pass
+     * the predicate are materialized as tuples
+     */
+    @Test public void iteratorWithPredicate() throws Exception {
+        final List<Integer> built = new ArrayList<Integer>();
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA) {
+            @Override
+            public Tuple getTuple(int slot) {
+                built.add(slot);
+                return super.getTuple(slot);
+            }
+        };
+        Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(40000));
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            if (EXAMPLE_VALUES[i][0] > 40000)
+                expected.add(i);
+        }
+
+        Iterator<Tuple> it = page.iterator(pred);
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[expected.get(n)][0], ((IntField) tup.getField(0)).getValue());
+            n++;
+        }
+        assertEquals(expected.size(), n);
+        assertEquals(expected, built);
+    }
+
     /**
      * JUnit suite target
      */
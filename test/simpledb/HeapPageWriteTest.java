@@ -1,9 +1,12 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -129,6 +132,24 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Modifying a page leaves the bytes it was created from alone and keeps
+     * them as the before image
+     */
+    @Test public void modifyLeavesSourceData() throws Exception {
+        byte[] source = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, source);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.deleteTuple(page.iterator().next());
+
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, source);
+        assertArrayEquals(source, page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(source, page.getPageData()));
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
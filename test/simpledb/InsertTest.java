@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -56,6 +58,37 @@ public class InsertTest extends TestUtil.CreateHeapFile {
     assertEquals(1, empty.numPages());
   }
 
+  /**
+   * A bulk insert leaves each tuple with the record id of the page it was
+   * appended to, so it can be found and deleted through it
+   */
+  @Test public void bulkInsertRecordIds() throws Exception {
+    Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+    ArrayList<Tuple> rows = new ArrayList<Tuple>();
+    for (int i = 0; i < 2000; ++i) {
+      rows.add(Utility.getHeapTuple(i, 2));
+    }
+    Insert op = new Insert(tid, new TupleIterator(empty.getTupleDesc(), rows),
+        empty.getId(), true);
+    op.open();
+    op.next();
+    op.close();
+    assertEquals(5, empty.numPages());
+
+    for (int i = 0; i < rows.size(); ++i) {
+      RecordId rid = rows.get(i).getRecordId();
+      assertEquals(1 + i / 504, rid.getPageId().getPageNumber());
+      HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+          rid.getPageId(), Permissions.READ_ONLY);
+      assertTrue(TestUtil.compareTuples(rows.get(i), p.getTuple(rid.getTupleNumber())));
+    }
+    Database.getBufferPool().deleteTuple(tid, rows.get(600));
+    HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+        new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+    assertEquals(1, p.getNumEmptySlots());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,330 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private LockManager lm;
+    private TransactionId tid1, tid2;
+
+    /** Time to wait for a lock to be granted, in ms */
+    private static final int WAIT = 200;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /**
+     * Releasing a transaction's locks drops the entries of pages and tables
+     * nobody else holds, and keeps shared locks of other transactions
+     */
+    @Test public void releaseDropsEmptyEntries() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            lm.tryToGetPage(tid1, new HeapPageId(1, i), Permissions.READ_WRITE);
+        }
+        PageId shared = new HeapPageId(2, 0);
+        lm.tryToGetPage(tid1, shared, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid2, shared, Permissions.READ_ONLY);
+        // the pages plus the intention locks on both tables
+        assertEquals(103, lm.lockedObjects());
+
+        lm.releaseLocks(tid1);
+        assertEquals(2, lm.lockedObjects());
+        assertFalse(lm.holdsLock(tid1, shared));
+        assertTrue(lm.holdsLock(tid2, shared));
+
+        lm.removeLock(shared, tid2);
+        assertEquals(1, lm.lockedObjects());
+        lm.releaseLocks(tid2);
+        assertEquals(0, lm.lockedObjects());
+    }
+
+    /**
+     * A lock can be upgraded by its only holder, and a released page can be
+     * locked exclusively by another transaction
+     */
+    @Test public void upgradeAndReacquire() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        lm.tryToGetPage(tid1, pid, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid1, pid, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(tid1, pid));
+        lm.releaseLocks(tid1);
+        lm.tryToGetPage(tid2, pid, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(tid2, pid));
+        assertEquals(2, lm.lockedObjects());
+    }
+
+    // request a lock in a new thread; the latch opens once it is granted
+    private CountDownLatch grab(final TransactionId tid, final PageId pid, final Permissions perm) {
+        final CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.tryToGetPage(tid, pid, perm);
+                    granted.countDown();
+                } catch (TransactionAbortedException e) {
+                    // stays closed
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    /**
+     * A shared request queues behind a waiting exclusive one instead of
+     * overtaking it, and waiting shared requests are granted together
+     */
+    @Test public void fifoAndSharedBatching() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        TransactionId tid3 = new TransactionId();
+        TransactionId tid4 = new TransactionId();
+        lm.tryToGetPage(tid1, pid, Permissions.READ_ONLY);
+        CountDownLatch x = grab(tid2, pid, Permissions.READ_WRITE);
+        assertFalse(x.await(WAIT, TimeUnit.MILLISECONDS));
+        CountDownLatch s3 = grab(tid3, pid, Permissions.READ_ONLY);
+        CountDownLatch s4 = grab(tid4, pid, Permissions.READ_ONLY);
+        assertFalse(s3.await(WAIT, TimeUnit.MILLISECONDS));
+
+        lm.releaseLocks(tid1);
+        assertTrue(x.await(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(s3.await(WAIT, TimeUnit.MILLISECONDS));
+
+        lm.releaseLocks(tid2);
+        assertTrue(s3.await(WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(s4.await(WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(lm.holdsLock(tid3, pid));
+        assertTrue(lm.holdsLock(tid4, pid));
+    }
+
+    /**
+     * An upgrade waits ahead of exclusive requests that came earlier
+     */
+    @Test public void upgradeFirst() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        TransactionId tid3 = new TransactionId();
+        lm.tryToGetPage(tid1, pid, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid2, pid, Permissions.READ_ONLY);
+        CountDownLatch x3 = grab(tid3, pid, Permissions.READ_WRITE);
+        assertFalse(x3.await(WAIT, TimeUnit.MILLISECONDS));
+        CountDownLatch up = grab(tid1, pid, Permissions.READ_WRITE);
+        assertFalse(up.await(WAIT, TimeUnit.MILLISECONDS));
+
+        lm.releaseLocks(tid2);
+        assertTrue(up.await(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(x3.await(WAIT, TimeUnit.MILLISECONDS));
+
+        lm.releaseLocks(tid1);
+        assertTrue(x3.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    // request a lock in a new thread; the latch opens if it is refused
+    private CountDownLatch grabOrAbort(final TransactionId tid, final PageId pid, final Permissions perm) {
+        final CountDownLatch aborted = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.tryToGetPage(tid, pid, perm);
+                } catch (TransactionAbortedException e) {
+                    aborted.countDown();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return aborted;
+    }
+
+    /**
+     * The request closing a cycle finds it right away, and by default the
+     * youngest transaction of the cycle is the victim
+     */
+    @Test public void youngestIsVictim() throws Exception {
+        PageId p0 = new HeapPageId(1, 0);
+        PageId p1 = new HeapPageId(1, 1);
+        lm.tryToGetPage(tid1, p0, Permissions.READ_WRITE);
+        lm.tryToGetPage(tid2, p1, Permissions.READ_WRITE);
+        CountDownLatch aborted1 = grabOrAbort(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(aborted1.await(WAIT, TimeUnit.MILLISECONDS));
+        try {
+            lm.tryToGetPage(tid2, p0, Permissions.READ_WRITE);
+            fail("expected the deadlock to abort tid2");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseLocks(tid2);
+        assertFalse(aborted1.await(WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(lm.holdsLock(tid1, p1));
+    }
+
+    /**
+     * A request that closes two cycles at once gets a victim picked from
+     * each of them, not just from the first one found
+     */
+    @Test public void everyCycleBroken() throws Exception {
+        PageId p0 = new HeapPageId(1, 0);
+        PageId p1 = new HeapPageId(1, 1);
+        TransactionId tid3 = new TransactionId();
+        TransactionId tid4 = new TransactionId();
+        lm.tryToGetPage(tid1, p0, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid2, p1, Permissions.READ_WRITE);
+        // queue them in this order: tid3, tid4, then tid2 behind both writers
+        CountDownLatch aborted3 = grabOrAbort(tid3, p0, Permissions.READ_WRITE);
+        assertFalse(aborted3.await(WAIT, TimeUnit.MILLISECONDS));
+        CountDownLatch aborted4 = grabOrAbort(tid4, p0, Permissions.READ_WRITE);
+        assertFalse(aborted4.await(WAIT, TimeUnit.MILLISECONDS));
+        CountDownLatch shared2 = grab(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(shared2.await(WAIT, TimeUnit.MILLISECONDS));
+
+        // tid1 -> tid2 -> tid3 -> tid1 and tid1 -> tid2 -> tid4 -> tid1
+        CountDownLatch granted1 = grab(tid1, p1, Permissions.READ_WRITE);
+        assertTrue(aborted3.await(WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(aborted4.await(WAIT, TimeUnit.MILLISECONDS));
+        assertTrue(shared2.await(WAIT, TimeUnit.MILLISECONDS));
+        lm.releaseLocks(tid2);
+        assertTrue(granted1.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A victim that has not woken up yet stays out of the waits-for graph:
+     * a release on the object it waits for does not make it close a cycle
+     * again and cost another transaction its life
+     */
+    @Test public void victimNotDetectedTwice() throws Exception {
+        PageId p0 = new HeapPageId(1, 0);
+        PageId p1 = new HeapPageId(1, 1);
+        TransactionId tid3 = new TransactionId();
+        TransactionId tid4 = new TransactionId();
+        lm.tryToGetPage(tid1, p0, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid3, p0, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid4, p0, Permissions.READ_ONLY);
+        lm.tryToGetPage(tid2, p1, Permissions.READ_WRITE);
+        CountDownLatch aborted2 = grabOrAbort(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(aborted2.await(WAIT, TimeUnit.MILLISECONDS));
+
+        ReentrantLock stripe0 = lm.stripeLock(p0);
+        assertNotSame(stripe0, lm.stripeLock(p1));
+        stripe0.lock();
+        try {
+            // tid1 -> tid2 -> tid1: tid2 is picked, but cannot be told yet
+            CountDownLatch aborted1 = grabOrAbort(tid1, p1, Permissions.READ_WRITE);
+            long deadline = System.currentTimeMillis() + WAIT;
+            while (!stripe0.hasQueuedThreads() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(stripe0.hasQueuedThreads());
+            CountDownLatch aborted3 = grabOrAbort(tid3, p1, Permissions.READ_WRITE);
+            assertFalse(aborted3.await(WAIT, TimeUnit.MILLISECONDS));
+            // tid2 now waits for tid3, which waits for tid2, but tid2 is leaving
+            lm.removeLock(p0, tid4);
+            assertFalse(aborted3.await(WAIT, TimeUnit.MILLISECONDS));
+            assertFalse(aborted1.await(0, TimeUnit.MILLISECONDS));
+        } finally {
+            stripe0.unlock();
+        }
+        assertTrue(aborted2.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * With FEWEST_LOCKS the victim is the waiter holding less, even if it
+     * is not the one that closed the cycle
+     */
+    @Test public void fewestLocksIsVictim() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        PageId p0 = new HeapPageId(1, 0);
+        PageId p1 = new HeapPageId(1, 1);
+        lm.tryToGetPage(tid1, p0, Permissions.READ_WRITE);
+        lm.tryToGetPage(tid2, p1, Permissions.READ_WRITE);
+        lm.tryToGetPage(tid2, new HeapPageId(1, 2), Permissions.READ_WRITE);
+        CountDownLatch aborted1 = grabOrAbort(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(aborted1.await(WAIT, TimeUnit.MILLISECONDS));
+        CountDownLatch granted2 = grab(tid2, p0, Permissions.READ_WRITE);
+        assertTrue(aborted1.await(WAIT, TimeUnit.MILLISECONDS));
+        assertFalse(granted2.await(WAIT, TimeUnit.MILLISECONDS));
+        lm.releaseLocks(tid1);
+        assertTrue(granted2.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A table lock covers reading its pages, so they are not locked one by
+     * one, but a page another transaction writes still waits for it
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        lm.lockTable(tid1, 1, Permissions.READ_ONLY);
+        for (int i = 0; i < 10; i++) {
+            lm.tryToGetPage(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+        }
+        assertEquals(1, lm.lockedObjects());
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 3)));
+
+        CountDownLatch x = grab(tid2, new HeapPageId(1, 3), Permissions.READ_WRITE);
+        assertFalse(x.await(WAIT, TimeUnit.MILLISECONDS));
+        lm.releaseLocks(tid1);
+        assertTrue(x.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Page locks past the threshold are traded for one table lock, X if
+     * any of them was X
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(3);
+        lm.tryToGetPage(tid1, new HeapPageId(1, 0), Permissions.READ_ONLY);
+        lm.tryToGetPage(tid1, new HeapPageId(1, 1), Permissions.READ_ONLY);
+        assertEquals(3, lm.lockedObjects());
+        lm.tryToGetPage(tid1, new HeapPageId(1, 2), Permissions.READ_ONLY);
+        assertEquals(1, lm.lockedObjects());
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 7)));
+
+        // a reader of the same table keeps tid2 from escalating to X
+        lm.tryToGetPage(tid2, new HeapPageId(2, 0), Permissions.READ_WRITE);
+        lm.tryToGetPage(tid2, new HeapPageId(2, 1), Permissions.READ_ONLY);
+        TransactionId tid3 = new TransactionId();
+        lm.tryToGetPage(tid3, new HeapPageId(2, 5), Permissions.READ_ONLY);
+        lm.tryToGetPage(tid2, new HeapPageId(2, 2), Permissions.READ_ONLY);
+        assertEquals(1 + 5, lm.lockedObjects());
+        lm.releaseLocks(tid3);
+        lm.tryToGetPage(tid2, new HeapPageId(2, 3), Permissions.READ_ONLY);
+        assertEquals(2, lm.lockedObjects());
+        CountDownLatch s3 = grab(tid3, new HeapPageId(2, 5), Permissions.READ_ONLY);
+        assertFalse(s3.await(WAIT, TimeUnit.MILLISECONDS));
+        lm.releaseLocks(tid2);
+        assertTrue(s3.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Writers of different tuples of a page go ahead together, while a
+     * reader of the whole page waits for both
+     */
+    @Test public void tupleLocks() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        lm.lockTuple(tid1, new RecordId(pid, 0), Permissions.READ_WRITE);
+        lm.lockTuple(tid2, new RecordId(pid, 1), Permissions.READ_WRITE);
+        TransactionId tid3 = new TransactionId();
+        CountDownLatch s = grab(tid3, pid, Permissions.READ_ONLY);
+        assertFalse(s.await(WAIT, TimeUnit.MILLISECONDS));
+        lm.releaseLocks(tid1);
+        assertFalse(s.await(WAIT, TimeUnit.MILLISECONDS));
+        lm.releaseLocks(tid2);
+        assertTrue(s.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
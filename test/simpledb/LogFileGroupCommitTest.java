@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileGroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 16;
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    /**
+     * A single commit is made durable by the flusher
+     */
+    @Test public void singleCommit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(1, log.getGroupCommitCount());
+        assertEquals(1, log.getGroupFlushCount());
+    }
+
+    /**
+     * Concurrent commits share log forces
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        log.setGroupCommit(20000, THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        start.await();
+                        log.logCommit(tid);
+                    } catch (Throwable e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Throwable e : errors) {
+            assertNull(e);
+        }
+        assertEquals(THREADS, log.getGroupCommitCount());
+        assertTrue(log.getGroupFlushCount() < THREADS);
+        assertTrue(log.getAverageCommitBatchSize() > 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileGroupCommitTest.class);
+    }
+}
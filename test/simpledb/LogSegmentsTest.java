@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 64;
+
+    private File dir;
+    private File control;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdir();
+        control = new File(dir, "log");
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private int segmentFiles() {
+        return dir.listFiles().length - 1;
+    }
+
+    // header, then n longs counting from 0
+    private LogSegments fill(int n) throws IOException {
+        LogSegments log = new LogSegments(control, SEGMENT_SIZE);
+        log.seek(0);
+        log.writeLong(-1);
+        for (int i = 0; i < n; i++) {
+            log.writeInt(i);
+            log.writeInt(i);
+        }
+        return log;
+    }
+
+    /**
+     * Values that straddle segment boundaries read back intact, also after
+     * reopening
+     */
+    @Test public void readAcrossSegments() throws Exception {
+        LogSegments log = fill(40);
+        assertEquals(LogSegments.HEADER_SIZE + 40 * 8, log.length());
+        assertEquals(5, segmentFiles());
+        log.seek(LogSegments.HEADER_SIZE + 4);
+        for (int i = 0; i < 39; i++) {
+            assertEquals(((long) i << 32) | (i + 1), log.readLong());
+        }
+        log.close();
+
+        log = new LogSegments(control, SEGMENT_SIZE);
+        assertEquals(LogSegments.HEADER_SIZE + 40 * 8, log.length());
+        log.seek(0);
+        assertEquals(-1, log.readLong());
+        log.seek(log.length() - 4);
+        assertEquals(39, log.readInt());
+        log.close();
+    }
+
+    /**
+     * Truncation deletes whole segments before the cut and nothing else
+     */
+    @Test public void truncateDeletesWholeSegments() throws Exception {
+        LogSegments log = fill(40);
+        long cut = LogSegments.HEADER_SIZE + 2 * SEGMENT_SIZE + 8;
+        assertEquals(2, log.truncate(cut));
+        assertEquals(3, segmentFiles());
+        assertEquals(LogSegments.HEADER_SIZE + 2 * SEGMENT_SIZE, log.start());
+
+        log.seek(cut);
+        assertEquals(17, log.readInt());
+        log.seek(0);
+        assertEquals(-1, log.readLong());
+        log.seek(LogSegments.HEADER_SIZE);
+        try {
+            log.readInt();
+            fail("read a truncated offset");
+        } catch (IOException e) {
+            // expected
+        }
+        log.close();
+    }
+
+    /**
+     * A checkpoint lets the log drop the segments of finished transactions
+     */
+    @Test public void checkpointTruncatesSegments() throws Exception {
+        LogFile log = new LogFile(control, SEGMENT_SIZE);
+        for (int i = 0; i < 20; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        long before = log.getLogSize();
+        int files = segmentFiles();
+
+        log.logCheckpoint();
+        assertTrue(log.getLogSize() < before);
+        assertTrue(segmentFiles() < files);
+        log.logCommit(open);
+        log.shutdown();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
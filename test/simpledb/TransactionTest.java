@@ -4,6 +4,8 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +114,164 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete().
+   * Completing a transaction handles the pages it dirtied and leaves the
+   * dirty pages of other transactions alone.
+   */
+  @Test public void completeOnlyOwnPages() throws Exception {
+    HeapPage q0 = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    q0.markDirty(true, tid1);
+    HeapPage q1 = (HeapPage) bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    q1.markDirty(true, tid2);
+
+    bp.transactionComplete(tid1, true);
+    assertNull(bp.getPage(tid2, p0, Permissions.READ_ONLY).isDirty());
+    assertEquals(tid2, bp.getPage(tid2, p1, Permissions.READ_ONLY).isDirty());
+
+    bp.transactionComplete(tid2, false);
+    assertNull(bp.getPage(tid1, p1, Permissions.READ_ONLY).isDirty());
+  }
+
+  private int countSnapshot(TransactionId tid) throws Exception {
+    SeqScan scan = new SeqScan(tid, empty.getId(), "");
+    scan.setSnapshotRead(true);
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    return n;
+  }
+
+  /**
+   * Snapshot reads take no locks and keep seeing the table as it was
+   * committed at the first read, whatever writers commit meanwhile.
+   */
+  @Test public void snapshotRead() throws Exception {
+    assertEquals(1025, countSnapshot(tid1));
+    assertFalse(bp.holdsLock(tid1, p2));
+
+    HeapPage p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    p.insertTuple(t);
+    p.markDirty(true, tid2);
+    assertEquals(1025, countSnapshot(tid1));
+    bp.transactionComplete(tid2, true);
+    assertEquals(1025, countSnapshot(tid1));
+
+    bp.transactionComplete(tid1, true);
+    assertEquals(1026, countSnapshot(new TransactionId()));
+  }
+
+  /**
+   * In STEAL mode a page evicted before its writer commits is read back
+   * from disk, but snapshots still see it as committed.
+   */
+  @Test public void snapshotHidesStolenPages() throws Exception {
+    bp = Database.resetBufferPool(2);
+    bp.setSteal(true);
+    assertEquals(1025, countSnapshot(tid1));
+
+    Transaction writer = new Transaction();
+    writer.start();
+    HeapPage p = (HeapPage) bp.getPage(writer.getId(), p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, writer.getId());
+    bp.unpinPage(writer.getId(), p2);
+
+    // with p0 pinned, the only page left to evict is the dirty one
+    TransactionId reader = new TransactionId();
+    bp.getPage(reader, p0, Permissions.READ_ONLY);
+    bp.getPage(reader, p1, Permissions.READ_ONLY);
+    assertNull(bp.cachedPage(p2));
+    bp.transactionComplete(reader);
+
+    assertEquals(1025, countSnapshot(tid1));
+    TransactionId fresh = new TransactionId();
+    assertEquals(1025, countSnapshot(fresh));
+    bp.transactionComplete(fresh);
+
+    writer.commit();
+    assertEquals(1025, countSnapshot(tid1));
+    bp.transactionComplete(tid1);
+    fresh = new TransactionId();
+    assertEquals(1026, countSnapshot(fresh));
+    bp.transactionComplete(fresh);
+  }
+
+  /**
+   * Pages a bulk insert appends straight to the file stay hidden from
+   * snapshots until it commits, and those taken before keep not seeing them.
+   */
+  @Test public void snapshotHidesBulkAppends() throws Exception {
+    assertEquals(1025, countSnapshot(tid1));
+    ArrayList<Tuple> rows = new ArrayList<Tuple>();
+    for (int i = 0; i < 2000; ++i) {
+      rows.add(Utility.getHeapTuple(i, 2));
+    }
+
+    Transaction aborted = new Transaction();
+    aborted.start();
+    bulkInsert(aborted.getId(), rows);
+    assertEquals(1025, countSnapshot(tid1));
+    TransactionId fresh = new TransactionId();
+    assertEquals(1025, countSnapshot(fresh));
+    bp.transactionComplete(fresh);
+    aborted.abort();
+    assertEquals(1025, countSnapshot(tid1));
+
+    Transaction committed = new Transaction();
+    committed.start();
+    bulkInsert(committed.getId(), rows);
+    committed.commit();
+    assertEquals(1025, countSnapshot(tid1));
+    bp.transactionComplete(tid1);
+    fresh = new TransactionId();
+    assertEquals(3025, countSnapshot(fresh));
+    bp.transactionComplete(fresh);
+  }
+
+  /**
+   * Aborting through the buffer pool alone, with no log rollback, empties
+   * the pages a bulk insert appended.
+   */
+  @Test public void abortedBulkAppendWithoutLog() throws Exception {
+    ArrayList<Tuple> rows = new ArrayList<Tuple>();
+    for (int i = 0; i < 2000; ++i) {
+      rows.add(Utility.getHeapTuple(i, 2));
+    }
+    TransactionId aborted = new TransactionId();
+    bulkInsert(aborted, rows);
+    assertEquals(7, empty.numPages());
+    bp.transactionComplete(aborted, false);
+
+    for (int pgNo = 3; pgNo < empty.numPages(); pgNo++) {
+      HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo));
+      assertFalse(page.iterator().hasNext());
+    }
+    TransactionId reader = new TransactionId();
+    SeqScan scan = new SeqScan(reader, empty.getId(), "");
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    bp.transactionComplete(reader);
+    assertEquals(1025, n);
+  }
+
+  private void bulkInsert(TransactionId tid, List<Tuple> rows) throws Exception {
+    Insert insert = new Insert(tid, new TupleIterator(empty.getTupleDesc(), rows), empty.getId(), true);
+    insert.open();
+    insert.next();
+    insert.close();
+  }
+
   /**
    * JUnit suite target
    */
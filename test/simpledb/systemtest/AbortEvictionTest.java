@@ -38,6 +38,51 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** In STEAL mode a transaction may dirty more pages than the pool
+     * holds; the stolen pages are undone from the log on abort.
+     */
+    @Test public void testStealDirtyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(2).setSteal(true);
+        int perPage = 504;
+
+        // fill several new pages, more than fit in the pool
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < perPage * 3; i++) {
+            insertRow(f, t, i);
+        }
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        for (int i = 0; i < perPage * 3; i++) {
+            insertRow(f, t, i);
+        }
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    // the magic tuple first, then plain rows
+    private static void insertRow(HeapFile f, Transaction t, int i)
+            throws DbException, IOException, TransactionAbortedException {
+        if (i == 0) {
+            EvictionTest.insertRow(f, t);
+            return;
+        }
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(i));
+        value.setField(1, new IntField(i));
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), value);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
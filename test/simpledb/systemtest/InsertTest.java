@@ -10,6 +10,11 @@ import org.junit.Test;
 public class InsertTest extends SimpleDbTestBase {
     private void validateInsert(int columns, int sourceRows, int destinationRows)
                 throws DbException, IOException, TransactionAbortedException {
+        validateInsert(columns, sourceRows, destinationRows, false);
+    }
+
+    private void validateInsert(int columns, int sourceRows, int destinationRows, boolean bulk)
+                throws DbException, IOException, TransactionAbortedException {
         // Create the two tables
         ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
         HeapFile source = SystemTestUtil.createRandomHeapFile(
@@ -23,7 +28,7 @@ public class InsertTest extends SimpleDbTestBase {
         // Insert source into destination
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, source.getId(), "");
-        Insert insOp = new Insert(tid, ss, destination.getId());
+        Insert insOp = new Insert(tid, ss, destination.getId(), bulk);
 
 //        Query q = new Query(insOp, tid);
         insOp.open();
@@ -68,6 +73,17 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testBulkOneToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(1, 1, 1, true);
+    }
+
+    @Test public void testBulkSeveralBatches()
+            throws IOException, DbException, TransactionAbortedException {
+        // more than Insert.BULK_LOAD_BATCH_PAGES pages of single int tuples
+        validateInsert(1, 992 * (Insert.BULK_LOAD_BATCH_PAGES + 3) + 5, 10, true);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
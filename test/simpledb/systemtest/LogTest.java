@@ -427,6 +427,178 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestCompactUpdateRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // two single-tuple updates log their slots, not whole pages
+        doInsert(hf1, 1, 2);
+        assertTrue(Database.getLogFile().getLogSize() < BufferPool.getPageSize());
+
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    // check whether the table file itself holds a tuple, bypassing the buffer pool
+    boolean onDisk(HeapFile hf, int v1) {
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                if (((IntField) it.next().getField(0)).getValue() == v1)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits in NO-FORCE mode, so its page is only in the log
+        // crash
+        // recovery redoes T1
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+        assertFalse(onDisk(hf1, 3));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits in NO-FORCE mode
+        // T2 inserts on the same page and aborts
+        // T1 data survives the abort and a crash, T2 data does not
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+        t2.transactionComplete(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits in NO-FORCE mode
+        // T2 inserts on the same page but does not commit
+        // checkpoint, which writes no pages
+        // crash
+        // recovery starts before the checkpoint, at the page's recLSN
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+
+        Database.getLogFile().logCheckpoint();
+        assertFalse(onDisk(hf1, 3));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestCheckpointWritesBack()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // a page that is only in the log at a checkpoint is written back
+        // in the background
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+        assertFalse(onDisk(hf1, 3));
+
+        Database.getLogFile().logCheckpoint();
+        for (int i = 0; i < 100 && !onDisk(hf1, 3); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(onDisk(hf1, 3));
+    }
+
+    @Test public void TestPageCleanerWritesAhead()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+        Database.getBufferPool().setDirtyRatioTarget(0);
+
+        // *** Test:
+        // with a dirty ratio target of 0 the page cleaner writes a page
+        // that is only in the log without waiting for eviction or a checkpoint
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+        for (int i = 0; i < 100 && !onDisk(hf1, 3); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(onDisk(hf1, 3));
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);